@@ -0,0 +1,196 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.pnfsoftware.jeb.client.HeadlessClientContext;
+import com.pnfsoftware.jeb.core.IEnginesContext;
+import com.pnfsoftware.jeb.core.IRuntimeProject;
+import com.pnfsoftware.jeb.core.input.BytesInput;
+import com.pnfsoftware.jeb.core.units.code.asm.processor.ProcessorException;
+
+/**
+ * Base class of the JMH benchmarks of the Diem module loader and bytecode parser. Subclasses
+ * provide the module to be processed.
+ * <p>
+ * Allocation rates are reported by the gc profiler (<code>-prof gc</code>, enabled by default in
+ * bench/build.xml).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AbstractDiemBenchmark {
+    private HeadlessClientContext client;
+    private IRuntimeProject project;
+    private DiemIdentifier identifier;
+
+    private String name;
+    private byte[] data;
+    /** processed once (the functions are mapped), used by the parsing and formatting benchmarks */
+    private DiemUnit unit;
+    /** addresses of all mapped instructions, see {@link #parseAt(Blackhole)} */
+    private long[] insnAddresses;
+    /** size in bytes of the bytecode of all routines, see {@link #decode(Blackhole, DecodedBytes)} */
+    private long bytecodeSize;
+
+    /**
+     * Number of bytecode bytes decoded by {@link AbstractDiemBenchmark#decode(Blackhole, DecodedBytes)}.
+     * JMH reports it as a rate: in bytes per microsecond, that is, MB/s.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class DecodedBytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @return the name of the module to be processed
+     */
+    protected abstract String getModuleName();
+
+    /**
+     * @return the bytes of the module to be processed
+     */
+    protected abstract byte[] getModuleData() throws IOException;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        name = getModuleName();
+        data = getModuleData();
+
+        // units are created by the identifier directly: no other plugin is involved
+        client = new HeadlessClientContext();
+        client.initialize(new String[0]);
+        client.start();
+        IEnginesContext engctx = client.getEnginesContext();
+        project = engctx.loadProject("diem-bench");
+        identifier = new DiemIdentifier();
+        identifier.initialize(engctx.getPropertyDefinitionManager());
+
+        unit = prepareUnit();
+        // the disassembler plugin is not registered: only the module segments are created
+        unit.process();
+        insnAddresses = collectInstructionAddresses(unit);
+        for(FunctionDef f: unit.getInternalFunctions()) {
+            bytecodeSize += f.getCode().getInsnFileSize();
+        }
+    }
+
+    private static long[] collectInstructionAddresses(DiemUnit unit) {
+        int cnt = 0;
+        for(FunctionDef f: unit.getInternalFunctions()) {
+            cnt += f.getCode().getInstructionCount();
+        }
+        long[] r = new long[cnt];
+        int i = 0;
+        for(FunctionDef f: unit.getInternalFunctions()) {
+            long address = f.mappedAddress;
+            for(DiemInstruction insn: f.getCode().getInstructions()) {
+                r[i++] = address;
+                address += insn.getSize();
+            }
+        }
+        return r;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.stop();
+    }
+
+    private DiemUnit prepareUnit() {
+        return (DiemUnit)identifier.prepare(name, new BytesInput(data), project.getProcessor(), project,
+                new HashMap<>());
+    }
+
+    @Benchmark
+    public boolean canIdentify() {
+        return identifier.canIdentify(new BytesInput(data), project, name, new HashMap<>());
+    }
+
+    /** table loading and routine decoding, see {@link DiemUnit#loadModule()} */
+    @Benchmark
+    public DiemUnit loadModule() throws IOException {
+        DiemUnit u = prepareUnit();
+        u.loadModule();
+        return u;
+    }
+
+    /** decoding and stack analysis of all routines */
+    @Benchmark
+    public void parseFunctions(Blackhole bh) throws ProcessorException {
+        DiemBytecodeParser parser = unit.getBytecodeParser();
+        for(FunctionDef f: unit.getInternalFunctions()) {
+            CodeUnit code = f.getCode();
+            int offset = code.getInsnFileOffset();
+            bh.consume(parser.parseFunction(code.getFunctionHandleIndex(), code.getInstructionCount(), offset,
+                    offset + code.getInsnFileSize()));
+        }
+    }
+
+    /**
+     * Decoding throughput: same work as {@link #parseFunctions(Blackhole)}, the <code>bytes</code>
+     * secondary result is the number of bytecode bytes decoded per microsecond (MB/s).
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void decode(Blackhole bh, DecodedBytes counter) throws ProcessorException {
+        parseFunctions(bh);
+        counter.bytes += bytecodeSize;
+    }
+
+    /** retrieval of every mapped instruction by address, as done by the native code analysis */
+    @Benchmark
+    public void parseAt(Blackhole bh) throws ProcessorException {
+        DiemBytecodeParser parser = unit.getBytecodeParser();
+        for(long address: insnAddresses) {
+            bh.consume(parser.parseAt(null, address));
+        }
+    }
+
+    @Benchmark
+    public String formatTables() {
+        return unit.formatTables();
+    }
+}
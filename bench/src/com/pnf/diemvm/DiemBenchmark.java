@@ -0,0 +1,60 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmarks of the Diem module loader and bytecode parser, on module files.
+ * <p>
+ * Modules are selected with the <code>file</code> parameter: relative names are resolved against
+ * the <code>diem.testdata</code> folder (default: testdata/), absolute paths are used as-is, e.g.
+ * <code>-p file=/tmp/large.bin</code>.
+ */
+@State(Scope.Benchmark)
+public class DiemBenchmark extends AbstractDiemBenchmark {
+    @Param({"1.bin", "check_native_keccak256.bin", "create_account.bin", "libra_account.bin", "libra_coin.bin",
+            "math.bin"})
+    public String file;
+
+    private Path getPath() {
+        Path path = Paths.get(file);
+        if(!path.isAbsolute()) {
+            path = Paths.get(System.getProperty("diem.testdata", "testdata"), file);
+        }
+        return path;
+    }
+
+    @Override
+    protected String getModuleName() {
+        return getPath().getFileName().toString();
+    }
+
+    @Override
+    protected byte[] getModuleData() throws IOException {
+        return Files.readAllBytes(getPath());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.pnf.diemvm.Diem.OpcodeDef;
+import com.pnf.diemvm.Diem.SerializedType;
+import com.pnf.diemvm.Diem.SignatureType;
+import com.pnf.diemvm.Diem.TableType;
+
+/**
+ * JMH benchmarks of the lookups of the Diem enums by encoded value, as done by the module loader
+ * and the bytecode decoder. Each invocation looks up every valid value once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiemLookupBenchmark {
+    private int[] opcodes;
+    private int[] tableTypes;
+    private int[] signatureTypes;
+    private int[] serializedTypes;
+
+    @Setup
+    public void setup() {
+        opcodes = new int[OpcodeDef.values().length];
+        for(OpcodeDef e: OpcodeDef.values()) {
+            opcodes[e.ordinal()] = e.getOpcode();
+        }
+        tableTypes = new int[TableType.values().length];
+        for(TableType e: TableType.values()) {
+            tableTypes[e.ordinal()] = e.getValue();
+        }
+        signatureTypes = new int[SignatureType.values().length];
+        for(SignatureType e: SignatureType.values()) {
+            signatureTypes[e.ordinal()] = e.getValue();
+        }
+        serializedTypes = new int[SerializedType.values().length];
+        for(SerializedType e: SerializedType.values()) {
+            serializedTypes[e.ordinal()] = e.getValue();
+        }
+    }
+
+    @Benchmark
+    public void opcodeFromValue(Blackhole bh) {
+        for(int v: opcodes) {
+            bh.consume(OpcodeDef.fromValue(v));
+        }
+    }
+
+    /** opcode and operand size, as read for every instruction by the size scanner */
+    @Benchmark
+    public void operandSize(Blackhole bh) {
+        for(int v: opcodes) {
+            bh.consume(OpcodeDef.fromValue(v).getOperandType().getSize());
+        }
+    }
+
+    @Benchmark
+    public void tableTypeFromValue(Blackhole bh) {
+        for(int v: tableTypes) {
+            bh.consume(TableType.fromValue(v));
+        }
+    }
+
+    @Benchmark
+    public void signatureTypeFromValue(Blackhole bh) {
+        for(int v: signatureTypes) {
+            bh.consume(SignatureType.fromValue(v));
+        }
+    }
+
+    @Benchmark
+    public void serializedTypeFromValue(Blackhole bh) {
+        for(int v: serializedTypes) {
+            bh.consume(SerializedType.fromValue(v));
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import static com.pnf.diemvm.Diem.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Generator of synthetic Diem modules (1.0 format), used for scale testing.
+ * <p>
+ * The generated modules have the table layout read by {@link DiemUnit}. Routines are made of
+ * stack-consistent instruction patterns (arithmetic, local stores, branches, internal and imported
+ * calls, string loads, struct packing and unpacking), so they are accepted by the bytecode parser.
+ * <p>
+ * Command line usage: <code>DiemModuleGenerator OUTFILE [-functions=N] [-instructions=N]
+ * [-structs=N] [-fields=N] [-strings=N] [-imports=N]</code>
+ */
+public class DiemModuleGenerator {
+    private int functionCount = 1;
+    private int instructionsPerFunction = 16;
+    private int structCount = 0;
+    private int fieldsPerStruct = 1;
+    private int stringCount = 0;
+    private int importCount = 0;
+
+    public DiemModuleGenerator setFunctionCount(int functionCount) {
+        check(functionCount, 1, 0x8000);
+        this.functionCount = functionCount;
+        return this;
+    }
+
+    /** number of instructions of each routine; the last one is a RET */
+    public DiemModuleGenerator setInstructionsPerFunction(int instructionsPerFunction) {
+        check(instructionsPerFunction, 1, 0xFFFF);
+        this.instructionsPerFunction = instructionsPerFunction;
+        return this;
+    }
+
+    public DiemModuleGenerator setStructCount(int structCount) {
+        check(structCount, 0, 0x8000);
+        this.structCount = structCount;
+        return this;
+    }
+
+    public DiemModuleGenerator setFieldsPerStruct(int fieldsPerStruct) {
+        check(fieldsPerStruct, 1, 0x100);
+        this.fieldsPerStruct = fieldsPerStruct;
+        return this;
+    }
+
+    /** number of strings, in addition to the names of the module objects */
+    public DiemModuleGenerator setStringCount(int stringCount) {
+        check(stringCount, 0, 0x8000);
+        this.stringCount = stringCount;
+        return this;
+    }
+
+    /** number of imported function handles */
+    public DiemModuleGenerator setImportCount(int importCount) {
+        check(importCount, 0, 0x8000);
+        this.importCount = importCount;
+        return this;
+    }
+
+    private static void check(int value, int min, int max) {
+        if(value < min || value > max) {
+            throw new IllegalArgumentException(String.format("Value %d is not in [%d,%d]", value, min, max));
+        }
+    }
+
+    /**
+     * Generate the module bytes.
+     */
+    public byte[] generate() {
+        if(structCount * fieldsPerStruct > 0xFFFF) {
+            throw new IllegalArgumentException("Too many fields");
+        }
+
+        // string pool: module names, then function, struct, field and import names, then the extra strings
+        List<String> strings = new ArrayList<>();
+        strings.add("<SELF>");
+        strings.add("Imported");
+        int fnameBase = strings.size();
+        for(int i = 0; i < functionCount; i++) {
+            strings.add("f" + i);
+        }
+        int snameBase = strings.size();
+        for(int i = 0; i < structCount; i++) {
+            strings.add("S" + i);
+        }
+        int xnameBase = strings.size();
+        for(int i = 0; i < fieldsPerStruct; i++) {
+            strings.add("x" + i);
+        }
+        int gnameBase = strings.size();
+        for(int i = 0; i < importCount; i++) {
+            strings.add("g" + i);
+        }
+        int extraBase = strings.size();
+        for(int i = 0; i < stringCount; i++) {
+            strings.add("string #" + i);
+        }
+        if(strings.size() > 0xFFFF) {
+            throw new IllegalArgumentException("Too many strings");
+        }
+
+        Map<TableType, Writer> tables = new TreeMap<>();
+
+        Writer w = new Writer();
+        for(String s: strings) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            w.uleb(b.length).bytes(b);
+        }
+        tables.put(TableType.STRING_POOL, w);
+
+        // address #0: this module, #1: the module of imported functions
+        w = new Writer();
+        w.bytes(new byte[ADDRESS_LENGTH]);
+        for(int i = 0; i < ADDRESS_LENGTH; i++) {
+            w.u8(1);
+        }
+        tables.put(TableType.ADDRESS_POOL, w);
+
+        w = new Writer();
+        w.uleb(0).uleb(0);
+        w.uleb(1).uleb(1);
+        tables.put(TableType.MODULE_HANDLES, w);
+
+        // type #0: u64
+        w = new Writer();
+        w.u8(SignatureType.TYPE_SIGNATURE.getValue()).u8(SerializedType.INTEGER.getValue());
+        tables.put(TableType.TYPE_SIGNATURES, w);
+
+        // signature #0: ():(), signature #1: (u64):(u64)
+        w = new Writer();
+        w.u8(SignatureType.FUNCTION_SIGNATURE.getValue()).u8(0).u8(0);
+        w.u8(SignatureType.FUNCTION_SIGNATURE.getValue()).u8(1).u8(SerializedType.INTEGER.getValue()).u8(1)
+                .u8(SerializedType.INTEGER.getValue());
+        tables.put(TableType.FUNCTION_SIGNATURES, w);
+
+        // locals #0: u64, u64
+        w = new Writer();
+        w.u8(SignatureType.LOCAL_SIGNATURE.getValue()).u8(2).u8(SerializedType.INTEGER.getValue())
+                .u8(SerializedType.INTEGER.getValue());
+        tables.put(TableType.LOCALS_SIGNATURES, w);
+
+        if(structCount > 0) {
+            w = new Writer();
+            for(int i = 0; i < structCount; i++) {
+                w.uleb(0).uleb(snameBase + i).u8(0);
+            }
+            tables.put(TableType.STRUCT_HANDLES, w);
+
+            w = new Writer();
+            for(int i = 0; i < structCount; i++) {
+                w.uleb(i).uleb(fieldsPerStruct).uleb(i * fieldsPerStruct);
+            }
+            tables.put(TableType.STRUCT_DEFS, w);
+
+            w = new Writer();
+            for(int i = 0; i < structCount; i++) {
+                for(int j = 0; j < fieldsPerStruct; j++) {
+                    w.uleb(i).uleb(xnameBase + j).uleb(0);
+                }
+            }
+            tables.put(TableType.FIELD_DEFS, w);
+        }
+
+        // internal function handles first, then the imports
+        w = new Writer();
+        for(int i = 0; i < functionCount; i++) {
+            w.uleb(0).uleb(fnameBase + i).uleb(0);
+        }
+        for(int i = 0; i < importCount; i++) {
+            w.uleb(1).uleb(gnameBase + i).uleb(1);
+        }
+        tables.put(TableType.FUNCTION_HANDLES, w);
+
+        w = new Writer();
+        for(int i = 0; i < functionCount; i++) {
+            generateFunction(w, i, extraBase);
+        }
+        tables.put(TableType.FUNCTION_DEFS, w);
+
+        // header, table directory, tables
+        Writer out = new Writer();
+        out.bytes("LIBRAVM\n".getBytes(StandardCharsets.UTF_8)).u8(1).u8(0);
+        out.u8(tables.size());
+        int offset = out.size() + tables.size() * 9;
+        for(Map.Entry<TableType, Writer> e: tables.entrySet()) {
+            int size = e.getValue().size();
+            out.u8(e.getKey().getValue()).u32(offset).u32(size);
+            offset += size;
+        }
+        for(Writer t: tables.values()) {
+            out.bytes(t.toByteArray());
+        }
+        return out.toByteArray();
+    }
+
+    private void generateFunction(Writer w, int index, int extraBase) {
+        Code code = new Code();
+        int remaining = instructionsPerFunction - 1;
+        for(int k = 0; remaining > 0; k++) {
+            int pattern = k % 6;
+            int start = code.count;
+            if(pattern == 1 && importCount > 0 && remaining >= 3) {
+                // call an import: (u64):(u64)
+                code.op(OpcodeDef.COPY_LOC).u8(0);
+                code.op(OpcodeDef.CALL, 1, 1).uleb(functionCount + (index + k) % importCount);
+                code.op(OpcodeDef.ST_LOC).u8(1);
+            }
+            else if(pattern == 2 && remaining >= 1) {
+                // call the next internal routine: ():()
+                code.op(OpcodeDef.CALL, 0, 0).uleb((index + 1) % functionCount);
+            }
+            else if(pattern == 3 && stringCount > 0 && remaining >= 2) {
+                code.op(OpcodeDef.LD_STR).uleb(extraBase + (index + k) % stringCount);
+                code.op(OpcodeDef.POP);
+            }
+            else if(pattern == 4 && structCount > 0 && remaining >= 2 * fieldsPerStruct + 2) {
+                int sd = (index + k) % structCount;
+                for(int i = 0; i < fieldsPerStruct; i++) {
+                    code.op(OpcodeDef.LD_CONST).u64(i);
+                }
+                code.op(OpcodeDef.PACK, fieldsPerStruct, 1).uleb(sd);
+                code.op(OpcodeDef.UNPACK, 1, fieldsPerStruct).uleb(sd);
+                for(int i = 0; i < fieldsPerStruct; i++) {
+                    code.op(OpcodeDef.POP);
+                }
+            }
+            else if(pattern == 5 && remaining >= 2) {
+                // conditional branch to the next instruction
+                code.op(OpcodeDef.LD_FALSE);
+                code.op(OpcodeDef.BR_TRUE).u16(code.count);
+            }
+            else if(remaining >= 4) {
+                code.op(OpcodeDef.LD_CONST).u64(k);
+                code.op(OpcodeDef.LD_CONST).u64(1);
+                code.op(OpcodeDef.ADD);
+                code.op(OpcodeDef.ST_LOC).u8(0);
+            }
+            else {
+                // filler: unconditional branch to the next instruction
+                code.op(OpcodeDef.BRANCH).u16(code.count);
+            }
+            remaining -= code.count - start;
+        }
+        code.op(OpcodeDef.RET, 0, 0);
+
+        w.uleb(index).u8(PUBLIC).uleb(code.maxStack).uleb(0).u16(code.count).bytes(code.w.toByteArray());
+    }
+
+    /** routine bytecode, tracking the instruction count and stack height */
+    private static class Code {
+        Writer w = new Writer();
+        int count;
+        int stack;
+        int maxStack;
+
+        Writer op(OpcodeDef op) {
+            return op(op, op.getPopCount(), op.getPushCount());
+        }
+
+        /** variable stack effects (calls, returns, struct operations) must be provided */
+        Writer op(OpcodeDef op, int pop, int push) {
+            if(pop < 0 || push < 0 || pop > stack) {
+                throw new IllegalStateException("Illegal stack effect for " + op);
+            }
+            stack -= pop;
+            stack += push;
+            maxStack = Math.max(maxStack, stack);
+            count++;
+            return w.u8(op.getOpcode());
+        }
+    }
+
+    private static class Writer {
+        private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Writer u8(int v) {
+            out.write(v);
+            return this;
+        }
+
+        Writer u16(int v) {
+            return u8(v).u8(v >> 8);
+        }
+
+        Writer u32(int v) {
+            return u16(v).u16(v >> 16);
+        }
+
+        Writer u64(long v) {
+            return u32((int)v).u32((int)(v >> 32));
+        }
+
+        Writer uleb(int v) {
+            while((v & ~0x7F) != 0) {
+                u8((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            return u8(v);
+        }
+
+        Writer bytes(byte[] b) {
+            out.write(b, 0, b.length);
+            return this;
+        }
+
+        int size() {
+            return out.size();
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    public static void main(String[] argv) throws IOException {
+        if(argv.length < 1) {
+            System.out.println("Usage: DiemModuleGenerator OUTFILE [-functions=N] [-instructions=N] [-structs=N] "
+                    + "[-fields=N] [-strings=N] [-imports=N]");
+            return;
+        }
+        DiemModuleGenerator g = new DiemModuleGenerator();
+        for(int i = 1; i < argv.length; i++) {
+            String[] kv = argv[i].split("=", 2);
+            if(kv.length != 2) {
+                throw new IllegalArgumentException("Illegal option: " + argv[i]);
+            }
+            int v = Integer.parseInt(kv[1]);
+            switch(kv[0]) {
+            case "-functions":
+                g.setFunctionCount(v);
+                break;
+            case "-instructions":
+                g.setInstructionsPerFunction(v);
+                break;
+            case "-structs":
+                g.setStructCount(v);
+                break;
+            case "-fields":
+                g.setFieldsPerStruct(v);
+                break;
+            case "-strings":
+                g.setStringCount(v);
+                break;
+            case "-imports":
+                g.setImportCount(v);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + kv[0]);
+            }
+        }
+        Files.write(Paths.get(argv[0]), g.generate());
+    }
+}
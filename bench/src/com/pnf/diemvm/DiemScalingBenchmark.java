@@ -0,0 +1,48 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmarks of the Diem module loader and bytecode parser, on generated modules of increasing
+ * size (see {@link DiemModuleGenerator}), to draw scaling curves.
+ */
+@State(Scope.Benchmark)
+public class DiemScalingBenchmark extends AbstractDiemBenchmark {
+    @Param({"10", "100", "1000"})
+    public int functions;
+
+    @Param({"100", "1000"})
+    public int instructions;
+
+    @Override
+    protected String getModuleName() {
+        return String.format("synthetic-%dx%d.bin", functions, instructions);
+    }
+
+    @Override
+    protected byte[] getModuleData() {
+        return new DiemModuleGenerator().setFunctionCount(functions).setInstructionsPerFunction(instructions)
+                .setStructCount(functions / 10 + 1).setFieldsPerStruct(2).setStringCount(functions)
+                .setImportCount(functions / 10 + 1).generate();
+    }
+}
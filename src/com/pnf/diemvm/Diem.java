@@ -96,13 +96,19 @@ public class Diem {
             return usage;
         }
 
-        public static TableType fromValue(int value) {
+        private static final TableType[] byValue = new TableType[0x10];
+        static {
             for(TableType t: values()) {
-                if(t.value == value) {
-                    return t;
-                }
+                byValue[t.value] = t;
             }
-            throw new RuntimeException("Unknown value: " + value);
+        }
+
+        public static TableType fromValue(int value) {
+            TableType t = value >= 0 && value < byValue.length ? byValue[value]: null;
+            if(t == null) {
+                throw new RuntimeException("Unknown value: " + value);
+            }
+            return t;
         }
     }
 
@@ -121,13 +127,19 @@ public class Diem {
             return value;
         }
 
-        public static SignatureType fromValue(int value) {
+        private static final SignatureType[] byValue = new SignatureType[0x10];
+        static {
             for(SignatureType t: values()) {
-                if(t.value == value) {
-                    return t;
-                }
+                byValue[t.value] = t;
+            }
+        }
+
+        public static SignatureType fromValue(int value) {
+            SignatureType t = value >= 0 && value < byValue.length ? byValue[value]: null;
+            if(t == null) {
+                throw new RuntimeException("Unknown value: " + value);
             }
-            throw new RuntimeException("Unknown value: " + value);
+            return t;
         }
     }
 
@@ -161,37 +173,54 @@ public class Diem {
             }
         }
 
-        public static SerializedType fromValue(int value) {
+        private static final SerializedType[] byValue = new SerializedType[0x10];
+        static {
             for(SerializedType t: values()) {
-                if(t.value == value) {
-                    return t;
-                }
+                byValue[t.value] = t;
             }
-            throw new RuntimeException("Unknown value: " + value);
+        }
+
+        public static SerializedType fromValue(int value) {
+            SerializedType t = value >= 0 && value < byValue.length ? byValue[value]: null;
+            if(t == null) {
+                throw new RuntimeException("Unknown value: " + value);
+            }
+            return t;
         }
     }
 
     enum OpndType {
         /** no immediate operands */
-        None,
+        None(0),
         /** immediate branch */
-        Branch,
+        Branch(2),
         /** uint64 constant */
-        ImmUint64,
+        ImmUint64(8),
         /** index of local variable */
-        IdxLocal,
+        IdxLocal(1),
         /** index of address */
-        IdxAddress,
+        IdxAddress(-1),
         /** index of byte array */
-        IdxByteArray,
+        IdxByteArray(-1),
         /** index of string */
-        IdxString,
+        IdxString(-1),
         /** index of function handle */
-        IdxFuncHandle,
+        IdxFuncHandle(-1),
         /** index of struct def */
-        IdxStructDef,
+        IdxStructDef(-1),
         /** index of field def */
-        IdxFieldDef
+        IdxFieldDef(-1);
+
+        private final int size;
+
+        private OpndType(int size) {
+            this.size = size;
+        }
+
+        /** encoded size of the operand in bytes; -1 for variable-length (ULEB128-encoded) operands */
+        public int getSize() {
+            return size;
+        }
     }
 
     // 53 opcodes as of v1.0 (6/27/19)
@@ -297,12 +326,20 @@ public class Diem {
             return docstr;
         }
 
+        /** decode table, indexed by opcode byte */
+        private static final OpcodeDef[] byOpcode = new OpcodeDef[256];
+        static {
+            for(OpcodeDef op: values()) {
+                Assert.a(byOpcode[op.v] == null);
+                byOpcode[op.v] = op;
+            }
+        }
+
         public static OpcodeDef fromValue(int opcode) {
-            if(opcode < 1 || opcode > 0x35) {
+            OpcodeDef op = opcode >= 0 && opcode < 256 ? byOpcode[opcode]: null;
+            if(op == null) {
                 throw new RuntimeException("Unknown opcode: " + opcode);
             }
-            OpcodeDef op = OpcodeDef.values()[opcode - 1];
-            Assert.a(op.v == opcode);
             return op;
         }
 
@@ -0,0 +1,314 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.pnf.diemvm.Diem.BinaryType;
+import com.pnfsoftware.jeb.client.HeadlessClientContext;
+import com.pnfsoftware.jeb.core.IEnginesContext;
+import com.pnfsoftware.jeb.core.IRuntimeProject;
+import com.pnfsoftware.jeb.core.input.BytesInput;
+import com.pnfsoftware.jeb.core.units.INativeCodeUnit;
+import com.pnfsoftware.jeb.core.units.IUnit;
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.INativeDecompilerUnit;
+import com.pnfsoftware.jeb.core.units.code.asm.items.INativeClassItem;
+import com.pnfsoftware.jeb.core.units.code.asm.items.INativeMethodItem;
+import com.pnfsoftware.jeb.core.util.DecompilerHelper;
+import com.pnfsoftware.jeb.util.logging.GlobalLog;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Headless batch decompiler for Diem modules and scripts.
+ * <p>
+ * Usage: <code>java -cp JEB_JAR:PLUGIN_JAR com.pnf.diemvm.DiemBatchDecompiler [-out=FOLDER] [-threads=N]
+ * [-expected] INPUT...</code>
+ * <p>
+ * Inputs are module files or folders, whose .bin files are processed recursively. Files are
+ * processed by a fixed pool of workers (default: one per processor), each file in its own project,
+ * which is unloaded once the file is done; memory usage depends on the number of workers, not on
+ * the number of files. For each file, the decompiled code is written to
+ * FOLDER/NAME.decompiled (default folder: decompiled), and a record (status, timings, allocated
+ * memory) is appended to FOLDER/report.tsv. With <code>-expected</code>, the tables of a module are
+ * compared to the NAME.expected file located next to it, if any.
+ * <p>
+ * The allocated memory is that of the worker thread processing the file. It does not include the
+ * allocations made on other threads, such as the ForkJoin common pool used by parallel stages of
+ * the plugin or of the engines: it is a lower bound. Process-wide counters cannot be used, since
+ * files are processed concurrently.
+ * <p>
+ * The plugin must be installed in the JEB coreplugins folder: modules are loaded by the unit
+ * processor of the engines, which also provides the disassembler and decompiler plugins.
+ */
+public class DiemBatchDecompiler {
+    private static final ILogger logger = GlobalLog.getLogger(DiemBatchDecompiler.class);
+
+    private IEnginesContext engctx;
+    private Path outdir;
+    private boolean checkExpected;
+    private PrintWriter report;
+
+    private AtomicInteger projectCount = new AtomicInteger();
+    private AtomicInteger successCount = new AtomicInteger();
+    private AtomicInteger failureCount = new AtomicInteger();
+    private AtomicInteger mismatchCount = new AtomicInteger();
+
+    public DiemBatchDecompiler(IEnginesContext engctx, Path outdir, boolean checkExpected) {
+        this.engctx = engctx;
+        this.outdir = outdir;
+        this.checkExpected = checkExpected;
+    }
+
+    /**
+     * Process files on a pool of workers. Returns when all files have been processed.
+     * 
+     * @return true if all files were successfully decompiled (and matched their expected tables)
+     */
+    public boolean run(List<Path> files, int threadCount) throws IOException, InterruptedException {
+        Files.createDirectories(outdir);
+        try(PrintWriter w = new PrintWriter(Files.newBufferedWriter(outdir.resolve("report.tsv")))) {
+            report = w;
+            report.println("file\tstatus\tsize\tload_ms\tdecompile_ms\tallocated_kb\ttables");
+
+            ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+            for(Path file: files) {
+                pool.execute(() -> process(file));
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        logger.info("Processed %d files: %d decompiled, %d failed, %d tables mismatches", files.size(),
+                successCount.get(), failureCount.get(), mismatchCount.get());
+        return failureCount.get() == 0 && mismatchCount.get() == 0;
+    }
+
+    private void process(Path file) {
+        String name = file.getFileName().toString();
+        String basename = name.endsWith(".bin") ? name.substring(0, name.length() - 4): name;
+        String status = "ok";
+        String tables = "-";
+        long size = 0;
+        long loadTime = 0;
+        long decompTime = 0;
+        long alloc0 = getAllocatedBytes();
+
+        String projectKey = "diem-batch-" + projectCount.incrementAndGet();
+        IRuntimeProject project = null;
+        try {
+            byte[] data = Files.readAllBytes(file);
+            size = data.length;
+
+            long t0 = System.currentTimeMillis();
+            // one project per file: the units are released when it is unloaded
+            project = engctx.loadProject(projectKey);
+            IUnit u = project.getProcessor().process(name, new BytesInput(data), project, DiemIdentifier.TYPE, true);
+            if(!(u instanceof DiemUnit) || !u.isProcessed()) {
+                throw new RuntimeException("The module was not processed");
+            }
+            DiemUnit unit = (DiemUnit)u;
+            long t1 = System.currentTimeMillis();
+            loadTime = t1 - t0;
+
+            String source = decompile(unit);
+            decompTime = System.currentTimeMillis() - t1;
+            Files.write(outdir.resolve(basename + ".decompiled"), source.getBytes(StandardCharsets.UTF_8));
+
+            if(checkExpected) {
+                Path expectedFile = file.resolveSibling(basename + ".expected");
+                if(Files.exists(expectedFile)) {
+                    String actual = unit.formatTables();
+                    String expected = new String(Files.readAllBytes(expectedFile), StandardCharsets.UTF_8);
+                    if(actual.strip().equals(expected.strip())) {
+                        tables = "match";
+                    }
+                    else {
+                        tables = "mismatch";
+                        mismatchCount.incrementAndGet();
+                        Files.write(outdir.resolve(basename + ".tables"), actual.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+            successCount.incrementAndGet();
+        }
+        catch(Exception e) {
+            logger.error("Cannot decompile %s: %s", file, e);
+            logger.catchingSilent(e);
+            status = "error";
+            failureCount.incrementAndGet();
+        }
+        finally {
+            if(project != null) {
+                // also disposes the units of the project
+                engctx.unloadProject(projectKey);
+            }
+        }
+
+        long alloc = getAllocatedBytes() - alloc0;
+        synchronized(report) {
+            report.printf("%s\t%s\t%d\t%d\t%d\t%d\t%s\n", file, status, size, loadTime, decompTime,
+                    alloc < 0 ? -1: alloc / 1024, tables);
+            report.flush();
+        }
+    }
+
+    /**
+     * Decompile a processed unit. Modules are decompiled as a whole (see
+     * {@link DiemModuleRebuilder}), scripts routine by routine.
+     */
+    @SuppressWarnings("unchecked")
+    String decompile(DiemUnit unit) {
+        INativeCodeUnit<DiemInstruction> code = null;
+        for(IUnit child: unit.getChildren()) {
+            if(child instanceof INativeCodeUnit) {
+                code = (INativeCodeUnit<DiemInstruction>)child;
+                break;
+            }
+        }
+        if(code == null) {
+            throw new RuntimeException("The bytecode was not disassembled");
+        }
+        if(!code.isProcessed() && !code.process()) {
+            throw new RuntimeException("The bytecode was not analyzed");
+        }
+
+        INativeDecompilerUnit<DiemInstruction> decomp = (INativeDecompilerUnit<DiemInstruction>)DecompilerHelper
+                .getDecompiler(code);
+        if(decomp == null) {
+            throw new RuntimeException("No decompiler available");
+        }
+
+        List<String> addresses = new ArrayList<>();
+        if(unit.getBinaryType() == BinaryType.MODULE) {
+            INativeClassItem module = null;
+            for(INativeClassItem c: code.getClasses()) {
+                if(DiemModuleRebuilder.StandardModuleName.equals(c.getName(true))) {
+                    module = c;
+                    break;
+                }
+            }
+            if(module == null) {
+                DiemModuleRebuilder rebuilder = new DiemModuleRebuilder(decomp);
+                rebuilder.perform();
+                module = rebuilder.getRebuiltModule();
+            }
+            if(module != null) {
+                addresses.add(module.getAddress());
+            }
+        }
+        if(addresses.isEmpty()) {
+            for(INativeMethodItem routine: code.getInternalMethods()) {
+                addresses.add(routine.getAddress());
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for(String address: addresses) {
+            if(!decomp.decompile(address)) {
+                throw new RuntimeException("Cannot decompile " + address);
+            }
+            sb.append(decomp.getDecompiledText(address)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, excluding other threads (e.g. the common
+     * pool); -1 if not supported
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if(mx instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    static List<Path> collectInputs(List<String> inputs) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for(String input: inputs) {
+            Path p = Paths.get(input);
+            if(Files.isDirectory(p)) {
+                try(Stream<Path> s = Files.walk(p)) {
+                    files.addAll(s.filter(f -> Files.isRegularFile(f) && f.toString().endsWith(".bin")).sorted()
+                            .collect(Collectors.toList()));
+                }
+            }
+            else {
+                files.add(p);
+            }
+        }
+        return files;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Path outdir = Paths.get("decompiled");
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        boolean checkExpected = false;
+        List<String> inputs = new ArrayList<>();
+        for(String arg: argv) {
+            if(arg.startsWith("-out=")) {
+                outdir = Paths.get(arg.substring(5));
+            }
+            else if(arg.startsWith("-threads=")) {
+                threadCount = Integer.parseInt(arg.substring(9));
+            }
+            else if(arg.equals("-expected")) {
+                checkExpected = true;
+            }
+            else if(arg.startsWith("-")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else {
+                inputs.add(arg);
+            }
+        }
+        if(inputs.isEmpty() || threadCount < 1) {
+            System.out.println("Usage: DiemBatchDecompiler [-out=FOLDER] [-threads=N] [-expected] INPUT...");
+            return;
+        }
+
+        HeadlessClientContext client = new HeadlessClientContext();
+        client.initialize(new String[0]);
+        client.start();
+        boolean success;
+        try {
+            DiemBatchDecompiler batch = new DiemBatchDecompiler(client.getEnginesContext(), outdir, checkExpected);
+            success = batch.run(collectInputs(inputs), threadCount);
+        }
+        finally {
+            client.stop();
+        }
+        System.exit(success ? 0: 1);
+    }
+}
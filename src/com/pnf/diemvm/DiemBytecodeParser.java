@@ -20,15 +20,12 @@ package com.pnf.diemvm;
 
 import static com.pnf.diemvm.Diem.*;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 import com.pnfsoftware.jeb.core.units.code.asm.memory.IVirtualMemory;
 import com.pnfsoftware.jeb.core.units.code.asm.processor.AbstractProcessor;
 import com.pnfsoftware.jeb.core.units.code.asm.processor.IProcessor;
 import com.pnfsoftware.jeb.core.units.code.asm.processor.ProcessorException;
-import com.pnfsoftware.jeb.util.io.ByteArray;
 import com.pnfsoftware.jeb.util.io.Endianness;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
@@ -73,58 +70,40 @@ public class DiemBytecodeParser extends AbstractProcessor<DiemInstruction> {
      * <p>
      * Not an {@link IProcessor} method. Usage restricted to {@link DiemUnit}.
      */
-    public List<DiemInstruction> parseFunction(int fh_index, int insncnt, int offset, int endOffset)
+    DiemInstructionTable parseFunction(int fh_index, int insncnt, int offset, int endOffset)
             throws ProcessorException {
         if(unit == null) {
             throw new IllegalStateException("Reserved usage");
         }
 
+        try {
+            return decodeFunction(fh_index, insncnt, offset, endOffset);
+        }
+        catch(RuntimeException e) {
+            unit.getTracer().dump(logger, String.format("Cannot parse routine (fh=%d)", fh_index));
+            throw e;
+        }
+    }
+
+    private DiemInstructionTable decodeFunction(int fh_index, int insncnt, int offset, int endOffset) {
         int insize = unit.getFunctionSignature(fh_index).getParamTokens().size();
         int outsize = unit.getFunctionSignature(fh_index).getReturnTokens().size();
-        logger.i("=> Function: %s (fh=%d): in=%d, out=%d", unit.getFunctionName(fh_index), fh_index, insize, outsize);
+        DiemTracer tracer = unit.getTracer();
+        if(tracer.isEnabled()) {
+            tracer.record(DiemTracer.Event.PARSE_FUNCTION, fh_index, insize, outsize, insncnt, offset);
+        }
 
         final int start = offset;
-        List<DiemInstruction> insnlist = new ArrayList<>(insncnt);
-        List<Integer> branchInstructionsIndices = new ArrayList<>();
+        DiemReader ba = new DiemReader(unit.getRawData(), offset, endOffset);
+        DiemInstructionTable table = new DiemInstructionTable(unit, null, start, insncnt);
         int stkdelta = 0;
 
         for(int i = 0; i < insncnt; i++) {
-            DiemInstruction insn = parseAt(unit.rawbytes, offset, endOffset);
-            insn.preExecStackDelta = stkdelta;
-            insn.indexInFunction = i;
-            insn.offsetInFunction = offset - start;
-            insnlist.add(insn);
-
-            OpcodeDef opcode = insn.getOpcode();
-            int popcnt = opcode.getPopCount();
-            int pushcnt = opcode.getPushCount();
-            switch(opcode) {
-            case RET: {
-                popcnt = outsize;
-                break;
-            }
-            case PACK: {
-                int sd_index = insn.getOperandAsIndex();
-                popcnt = unit.getStructFieldCount(sd_index);
-                break;
-            }
-            case UNPACK: {
-                int sd_index = insn.getOperandAsIndex();
-                pushcnt = unit.getStructFieldCount(sd_index);
-                break;
-            }
-            case CALL: {
-                int target_fh_index = insn.getOperandAsIndex();
-                popcnt = unit.getFunctionSignature(target_fh_index).getParamTokens().size();
-                pushcnt = unit.getFunctionSignature(target_fh_index).getReturnTokens().size();
-                break;
-            }
-            default:
-                ;
-            }
-            if(popcnt < 0 || pushcnt < 0) {
-                throw new RuntimeException("TBI: stkdelta for " + opcode);
-            }
+            int next = decodeAt(ba, table, i, offset - start);
+            OpcodeDef opcode = table.getOpcode(i);
+            int popcnt = getPopCount(table, i, outsize);
+            int pushcnt = getPushCount(table, i);
+            int prestkdelta = stkdelta;
             // stack consumption 
             stkdelta -= popcnt;
             if(stkdelta < 0) {
@@ -132,24 +111,28 @@ public class DiemBytecodeParser extends AbstractProcessor<DiemInstruction> {
             }
             // stack production
             stkdelta += pushcnt;
-            insn.postExecStackDelta = stkdelta;
+            table.setStackDeltas(i, prestkdelta, stkdelta);
 
-            // this instruction is branching, record it for later post-processing
-            switch(insn.getOpcode()) {
+            // branch targets are instruction indices within the function; the offset deltas used by
+            // JEB's IFlowInformation are computed on demand, see DiemInstruction#getTargetDelta
+            switch(opcode) {
             case BRANCH:
             case BR_FALSE:
             case BR_TRUE:
-                branchInstructionsIndices.add(i);
+                if(table.getOperand(i) >= insncnt) {
+                    throw new RuntimeException("Illegal branch target: " + table.getOperand(i));
+                }
                 break;
             default:
                 ;
             }
 
-            // debug log
-            logger.i("#%d/%04X/%04X: %s", i, offset, offset - start, insn.format((long)offset));
+            if(tracer.isEnabled()) {
+                tracer.record(DiemTracer.Event.PARSE_INSN, i, opcode.getOpcode(), prestkdelta, stkdelta, offset);
+            }
 
             // next instruction
-            offset += insn.getSize();
+            offset = next;
             if(offset > endOffset) {
                 throw new ArrayIndexOutOfBoundsException("Bytecode parsing is passing the buffer boundary");
             }
@@ -158,19 +141,98 @@ public class DiemBytecodeParser extends AbstractProcessor<DiemInstruction> {
         if(stkdelta != 0) {
             throw new RuntimeException("Unepxected non-zero stack delta at routine end: " + stkdelta);
         }
+        table.setEndOffset(offset - start);
 
-        // post-process branch instructions: determine the jump deltas
-        // (diem branch instructions specify an instruction index (within the function) as the target;
-        // JEB's IFlowInformation requires absolute memory address)
-        for(int i: branchInstructionsIndices) {
-            DiemInstruction insn = insnlist.get(i);
-            int targetInstructionIndex = (int)insn.getOperands()[0].getObject();
-            insn.targetDelta = insnlist.get(targetInstructionIndex).offsetInFunction - insn.offsetInFunction;
+        // stack consistency at block joins is checked by the code unit, see DiemStackVerifier
+        return table;
+    }
+
+    /**
+     * Number of stack values consumed by an instruction of a decoded routine.
+     * 
+     * @param outsize number of values returned by the routine
+     */
+    int getPopCount(DiemInstructionTable table, int i, int outsize) {
+        OpcodeDef opcode = table.getOpcode(i);
+        int popcnt;
+        switch(opcode) {
+        case RET:
+            popcnt = outsize;
+            break;
+        case PACK:
+            popcnt = unit.getStructFieldCount((int)table.getOperand(i));
+            break;
+        case CALL:
+            popcnt = unit.getFunctionSignature((int)table.getOperand(i)).getParamTokens().size();
+            break;
+        default:
+            popcnt = opcode.getPopCount();
+        }
+        if(popcnt < 0) {
+            throw new RuntimeException("TBI: stkdelta for " + opcode);
         }
+        return popcnt;
+    }
 
-        // TODO: stack consistency: verify that SP-deltas pre-exec on block entries are consistent with SP-deltas post-exec at exit of incoming blocks
-        // also check whether of not the diem verifier performs this check already 
-        return insnlist;
+    /**
+     * Number of stack values produced by an instruction of a decoded routine.
+     */
+    int getPushCount(DiemInstructionTable table, int i) {
+        OpcodeDef opcode = table.getOpcode(i);
+        int pushcnt;
+        switch(opcode) {
+        case UNPACK:
+            pushcnt = unit.getStructFieldCount((int)table.getOperand(i));
+            break;
+        case CALL:
+            pushcnt = unit.getFunctionSignature((int)table.getOperand(i)).getReturnTokens().size();
+            break;
+        default:
+            pushcnt = opcode.getPushCount();
+        }
+        if(pushcnt < 0) {
+            throw new RuntimeException("TBI: stkdelta for " + opcode);
+        }
+        return pushcnt;
+    }
+
+    /**
+     * Determine the size of a method's bytecode without decoding its instructions. Used for lazy
+     * parsing, see {@link DiemIdentifier#propnameLazyBytecodeParsing}.
+     * 
+     * @return the bytecode size in bytes
+     */
+    static int scanFunctionSize(ByteBuffer bytes, int insncnt, int offset, int endOffset) {
+        final int start = offset;
+        for(int i = 0; i < insncnt; i++) {
+            if(offset >= endOffset) {
+                throw new ArrayIndexOutOfBoundsException("Bytecode parsing is passing the buffer boundary");
+            }
+            OpcodeDef opdef = OpcodeDef.fromValue(bytes.get(offset) & 0xFF);
+            offset++;
+            int opndsize = opdef.getOperandType().getSize();
+            if(opndsize >= 0) {
+                offset += opndsize;
+            }
+            else {
+                // varu16: skip continuation bytes, at most 5 bytes as in DiemReader
+                int limit = Math.min(endOffset, offset + 5);
+                while(offset < limit && (bytes.get(offset) & 0x80) != 0) {
+                    offset++;
+                }
+                if(offset == limit) {
+                    if(limit == endOffset) {
+                        throw new ArrayIndexOutOfBoundsException("Bytecode parsing is passing the buffer boundary");
+                    }
+                    throw new RuntimeException("Illegal ULEB128 value");
+                }
+                offset++;
+            }
+            if(offset > endOffset) {
+                throw new ArrayIndexOutOfBoundsException("Bytecode parsing is passing the buffer boundary");
+            }
+        }
+        return offset - start;
     }
 
     /**
@@ -183,17 +245,11 @@ public class DiemBytecodeParser extends AbstractProcessor<DiemInstruction> {
             throw new IllegalStateException("Reserved usage");
         }
 
-        for(FunctionDef e: unit.getInternalFunctions()) {
-            if(address >= e.mappedAddress && address < (e.mappedAddress + e.mappedSize)) {
-                int wantedOffset = (int)(address - e.mappedAddress);
-                int currentOffset = 0;
-                for(DiemInstruction insn: e.getCode().getInstructions()) {
-                    if(currentOffset == wantedOffset) {
-                        return insn;
-                    }
-                    currentOffset += insn.getSize();
-                }
-                break;
+        FunctionDef f = unit.getFunctionContaining(address);
+        if(f != null) {
+            DiemInstruction insn = f.getCode().getInstructionAt((int)(address - f.mappedAddress));
+            if(insn != null) {
+                return insn;
             }
         }
         throw new ProcessorException(String.format("Cannot find preparsed instruction at address 0x%X", address));
@@ -201,50 +257,35 @@ public class DiemBytecodeParser extends AbstractProcessor<DiemInstruction> {
 
     @Override
     protected DiemInstruction parseAtInternal(byte[] bytes, final int index, final int end) throws ProcessorException {
-        ByteArray ba = new ByteArray(bytes, index);
+        // stand-alone instruction, backed by a single-row table
+        DiemInstructionTable table = new DiemInstructionTable(null, bytes, index, 1);
+        int next = decodeAt(new DiemReader(ByteBuffer.wrap(bytes), index, end), table, 0, 0);
+        table.setEndOffset(next - index);
+        return table.get(0);
+    }
+
+    /**
+     * Decode an instruction into a row of an instruction table. Decoding is driven by the opcode
+     * table, see {@link OpcodeDef#fromValue(int)} and {@link OpndType#getSize()}.
+     * 
+     * @return the offset of the next instruction
+     */
+    private static int decodeAt(DiemReader ba, DiemInstructionTable table, int row, int offsetInTable) {
         int b = ba.u8();
         OpcodeDef opdef = OpcodeDef.fromValue(b);
 
-        DiemInstruction insn = new DiemInstruction(opdef);
-        DiemInstructionOperand opnd = null;
-
-        OpndType opndtype = opdef.getOperandType();
-        switch(opndtype) {
-        case None:
-            break;
-        case Branch:
-            int target = ba.u16();
-            opnd = new DiemInstructionOperand(opndtype, target);
-            break;
-        case ImmUint64:
-            long cst = ba.i64();  // NOTE: reading as signed (Java), although should be u64
-            opnd = new DiemInstructionOperand(opndtype, cst);
-            break;
-
-        case IdxLocal:
-            int local_index = ba.u8();  // WATCH OUT! u8, not varu16! (and that means no more than 256 locals per diem object)
-            opnd = new DiemInstructionOperand(opndtype, local_index);
-            break;
-        case IdxAddress:
-        case IdxByteArray:
-        case IdxString:
-        case IdxFuncHandle:
-        case IdxFieldDef:
-        case IdxStructDef:
-            int idx = ba.varu16();
-            opnd = new DiemInstructionOperand(opndtype, idx);
-            break;
-        default:
-            throw new RuntimeException("Unsupported operand type " + opndtype + " (used by opcode " + opdef + " )");
-        }
-
-        insn.code = Arrays.copyOfRange(bytes, index, ba.position());
-        if(opnd == null) {
-            insn.opnds = new DiemInstructionOperand[]{};
+        long opnd = 0;
+        int opndsize = opdef.getOperandType().getSize();
+        if(opndsize > 0) {
+            // NOTE: ImmUint64 is read as signed (Java), although should be u64
+            // WATCH OUT! IdxLocal is u8, not varu16! (and that means no more than 256 locals per diem object)
+            opnd = ba.le(opndsize);
         }
-        else {
-            insn.opnds = new DiemInstructionOperand[]{opnd};
+        else if(opndsize < 0) {
+            opnd = ba.varu16();
         }
-        return insn;
+
+        table.set(row, b, opnd, offsetInTable);
+        return ba.position();
     }
 }
@@ -59,7 +59,7 @@ public class DiemCodeFormatter extends GenericCodeFormatter<DiemInstruction> {
         DiemInstruction _insn = (DiemInstruction)insn;
 
         // display operand stack information, before and after instruction execution
-        String p = String.format("[%d,%d] ", _insn.preExecStackDelta, _insn.postExecStackDelta);
+        String p = String.format("[%d,%d] ", _insn.getPreExecStackDelta(), _insn.getPostExecStackDelta());
         out.appendAndRecord(p, ItemClassIdentifiers.COMMENT);
         out.append("  ");
 
@@ -76,7 +76,7 @@ public class DiemCodeFormatter extends GenericCodeFormatter<DiemInstruction> {
         Object o = _opnd.getObject();
         switch(_opnd.getOperandType()) {
         case Branch:
-            long targetAddress = address + _insn.targetDelta;
+            long targetAddress = address + _insn.getTargetDelta();
             formatAddress(targetAddress, out);
             break;
         case ImmUint64:
@@ -19,8 +19,10 @@
 package com.pnf.diemvm;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.pnf.diemvm.Diem.OpcodeDef;
 import com.pnf.diemvm.Diem.OpndType;
@@ -41,14 +43,12 @@ import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ir.IEStatement;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ir.IEUntranslatedInstruction;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ir.IEVar;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ir.IWildcardType;
-import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ir.IWildcardTypeManager;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ir.OperationType;
 import com.pnfsoftware.jeb.core.units.code.asm.items.INativeFieldItem;
 import com.pnfsoftware.jeb.core.units.code.asm.items.INativeMethodItem;
 import com.pnfsoftware.jeb.core.units.code.asm.type.ICallingConvention;
 import com.pnfsoftware.jeb.core.units.code.asm.type.INativeType;
 import com.pnfsoftware.jeb.core.units.code.asm.type.IPrototypeItem;
-import com.pnfsoftware.jeb.core.units.code.asm.type.IReferenceType;
 import com.pnfsoftware.jeb.core.units.code.asm.type.ITypeManager;
 import com.pnfsoftware.jeb.util.base.Assert;
 import com.pnfsoftware.jeb.util.format.Formatter;
@@ -97,18 +97,41 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
     @SerTransient
     List<IEVar> localSlotVars;
 
-    static class StackSlot {
-        IEVar var;
-        SignatureToken st;
+    // type conversion caches (see convertDiemType and getWildcardType), keyed by interned tokens
+    @SerTransient
+    private ITypeManager nativeTypesOwner;
+    @SerTransient
+    private Map<SignatureToken, INativeType> nativeTypes;
+    @SerTransient
+    private IERoutineContext wildcardTypesOwner;
+    @SerTransient
+    private Map<SignatureToken, IWildcardType> wildcardTypes;
 
-        public StackSlot(IEVar var, SignatureToken st) {
-            this.var = var;
-            this.st = st;
-        }
-    }
+    /** see getSymbols */
+    @SerTransient
+    private DiemSymbolTable symbols;
 
+    /** operand stack: variable held by each slot, sized from the routine's max stack size */
+    @SerTransient
+    private IEVar[] opndstack;
+    /** token of the value held by each slot, null if the variable is not keyed by a token */
+    @SerTransient
+    private SignatureToken[] opndtokens;
+    /**
+     * stack variables of the routine, reused across blocks: for each slot, the variables keyed by
+     * token, wildcard type, or bitsize (untyped values)
+     */
+    @SerTransient
+    private List<Map<Object, IEVar>> opndstackVars;
+    /** folded value held by each slot instead of its variable, null if none (see DiemStackless) */
+    @SerTransient
+    private IEGeneric[] opndexprs;
+    /** register form of the routine being converted */
     @SerTransient
-    private List<StackSlot> opndstack = new LinkedList<>();
+    private DiemStackless stackless;
+    /** true if the value of the instruction being converted is folded into its consumer */
+    @SerTransient
+    private boolean foldValue;
     @SerTransient
     private int opndstackIndex = 0;
     @SerTransient
@@ -161,12 +184,17 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
             // (and it is the case for ex. for special IEUntranslatedInstruction, whose types are appropriately provided by the decompiler extension)
             // GENDEC may discard some types during the initial conversion, lifting, and optimization phases
             // however, I'm doing this here to get even better decompilation results
-            slot.setType(ctx.getWildcardTypeManager().create(convertDiemType(token)));
+            slot.setType(getWildcardType(ctx, token));
             index++;
             localSlotVars.add(slot);
         }
 
-        opndstack = new LinkedList<>();
+        int size = functionDef.getCode().getMaxStackSize();
+        opndstack = new IEVar[Math.max(1, size)];
+        opndstackVars = new ArrayList<>(size);
+        opndtokens = new SignatureToken[opndstack.length];
+        opndexprs = new IEGeneric[opndstack.length];
+        stackless = DiemStackless.lower(unit, functionDef.getCode());
         opndstackIndex = 0;
         opndstackCounter = 0;
     }
@@ -178,6 +206,10 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
         functionHandle = null;
         localSlotVars = null;
         opndstack = null;
+        opndstackVars = null;
+        opndtokens = null;
+        opndexprs = null;
+        stackless = null;
         opndstackIndex = 0;
         opndstackCounter = 0;
     }
@@ -189,6 +221,10 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
         List<IEStatement> r = new ArrayList<>();
         ConverterInstructionEntry<DiemInstruction> e = new ConverterInstructionEntry<>();
         e.r = r;  // will not change
+        DiemTracer tracer = unit.getTracer();
+        DiemSymbolTable symbols = getSymbols();
+        // routine index of the first instruction of the block
+        int first = functionDef.getCode().getInstructionTable().indexAt((int)(base - functionDef.mappedAddress));
 
         DiemInstruction insn = null;
         try {
@@ -198,10 +234,15 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                 // current native instruction
                 insn = b.get(i);
 
-                // block entry, let's pull the current stack index in the method
+                // block entry: set up the incoming stack
                 if(i == 0) {
-                    opndstackIndex = insn.preExecStackDelta;
+                    enterBlock(insn, first);
                 }
+                // values consumed in another block are materialized
+                int index = first < 0 ? -1: first + i;
+                foldValue = index >= 0 && stackless.isFolded(index) && stackless.getConsumer(index) < first + b.size();
+                // value or branch condition computed statically
+                boolean constant = index >= 0 && stackless.isConstant(index);
 
                 r.clear();
                 int irAddress = interlist.size();
@@ -220,7 +261,7 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                 case ST_LOC: {
                     int idx = insn.getOperandAsIndex();
                     IEVar dst = getLocalSlot(idx);
-                    IEVar var = pop();
+                    IEGeneric var = popValue();
                     e.r.add(ctx.createAssign(dst, var));
                     break;
                 }
@@ -235,22 +276,32 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                     IEVar var = getLocalSlot(idx);
                     SignatureToken sig = functionDef.getCode().getLocals(unit).getTokens().get(idx);
                     pushAssign(e, sig, var);
-                    if(opcode == OpcodeDef.MOVE_LOC) {
-                        // TODO: limited translation for move: we make the location invalid by zero'ing it (although zero is not invalid per-say)
+                    if(opcode == OpcodeDef.MOVE_LOC && (index < 0 || stackless.isInvalidatingMove(index))) {
+                        // limited translation for move: we make the location invalid by zero'ing it (although zero is not invalid per-say)
+                        // the store is only emitted if the local may be read afterwards, see DiemLocalLiveness
                         e.r.add(ctx.createAssign(var, ctx.createImm(0, var.getBitsize())));
                     }
                     break;
                 }
                 case BR_FALSE:
                 case BR_TRUE: {
-                    IEGeneric cond = pop();
-                    if(opcode == OpcodeDef.BR_FALSE) {
-                        cond = ctx.createOperation(OperationType.LOG_NOT, cond);
-                    }
+                    IEGeneric cond = popValue();
                     long ftNativeAddress = e.address + insn.getSize();
                     long brNativeAddress = insn.getBreakingFlow(e.address).getTargets().get(1).getAddress();
-                    IEAssign stm = ctx.createBranchAssign(pc, ctx.createCond(cond, ctx.createImm(brNativeAddress, 64),
-                            ctx.createImm(ftNativeAddress, 64)), false);
+                    IEAssign stm;
+                    if(constant) {
+                        // the dead edge is pruned: code reachable only through it is unreachable in the IR
+                        boolean taken = (stackless.getConstant(index) != 0) == (opcode == OpcodeDef.BR_TRUE);
+                        stm = ctx.createBranchAssign(pc, ctx.createImm(taken ? brNativeAddress: ftNativeAddress, 64),
+                                false);
+                    }
+                    else {
+                        if(opcode == OpcodeDef.BR_FALSE) {
+                            cond = ctx.createOperation(OperationType.LOG_NOT, cond);
+                        }
+                        stm = ctx.createBranchAssign(pc, ctx.createCond(cond, ctx.createImm(brNativeAddress, 64),
+                                ctx.createImm(ftNativeAddress, 64)), false);
+                    }
                     e.r.add(stm);
                     break;
                 }
@@ -262,8 +313,9 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                 }
                 case NOT: {
                     OperationType optype = opcodeToOperationType(opcode);
-                    IEGeneric opnd = pop();
-                    IEGeneric res = ctx.createOperation(optype, opnd);
+                    IEGeneric opnd = popValue();
+                    IEGeneric res = constant ? ctx.createImm(stackless.getConstant(index), 64)
+                            : ctx.createOperation(optype, opnd);
                     res = res.zeroExtend(64);
                     pushAssign(e, SignatureToken.stUint64, res);
                     break;
@@ -285,9 +337,10 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                 case LE:
                 case GE: {
                     OperationType optype = opcodeToOperationType(opcode);
-                    IEGeneric opnd1 = pop();
-                    IEGeneric opnd0 = pop();
-                    IEGeneric res = ctx.createOperation(optype, opnd0, opnd1);
+                    IEGeneric opnd1 = popValue();
+                    IEGeneric opnd0 = popValue();
+                    IEGeneric res = constant ? ctx.createImm(stackless.getConstant(index), 64)
+                            : ctx.createOperation(optype, opnd0, opnd1);
 
                     // TODO: proper support for 1-bit booleans to avoid some unnecessary casts
                     SignatureToken token;
@@ -315,13 +368,13 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                         ret = ctx.createReturn();
                     }
                     else if(returnTokens.size() == 1) {
-                        IEVar retvar = pop();
+                        IEGeneric retvar = popValue();
                         ret = ctx.createReturn(retvar);
                     }
                     else {
                         List<IEGeneric> retvars = new ArrayList<>(returnTokens.size());
                         for(int itoken = 0; itoken < returnTokens.size(); itoken++) {
-                            retvars.add(0, pop());
+                            retvars.add(0, popValue());
                         }
                         ret = ctx.createReturn(retvars);
                     }
@@ -329,32 +382,25 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                     break;
                 }
                 case POP: {
-                    pop();
+                    popValue();
                     break;
                 }
                 case CALL: {
                     int idx = insn.getOperandAsIndex();
-                    FunctionHandle f = unit.functionHandles.get(idx);
-                    String fname = f.getName(unit);
-                    FunctionSignature fsig = f.getSignature(unit);
+                    FunctionSignature fsig = unit.functionHandles.get(idx).getSignature(unit);
 
-                    INativeMethodItem targetRoutine = getNativeContext().getRoutine(f.mappedAddress);
+                    INativeMethodItem targetRoutine = symbols.getRoutine(idx);
                     if(targetRoutine == null) {
-                        targetRoutine = getNativeContext().getRoutineByName(fname);
-                        if(targetRoutine == null) {
-                            throw new UnsupportedConversionException("Cannot resolve routine");
-                        }
+                        throw new UnsupportedConversionException("Cannot resolve routine");
                     }
-
-                    IPrototypeItem proto = convertDiemPrototype(fsig);
                     if(targetRoutine.getPrototype() == null) {
-                        targetRoutine.setPrototype(proto);
+                        targetRoutine.setPrototype(symbols.getPrototype(fsig));
                     }
 
                     List<IEGeneric> _paramExp = new ArrayList<>();
                     for(@SuppressWarnings("unused")
                     SignatureToken token: fsig.getParamTokens()) {
-                        _paramExp.add(0, pop());
+                        _paramExp.add(0, popValue());
                     }
 
                     List<IEGeneric> _returnExp = new ArrayList<>();
@@ -377,16 +423,14 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                 }
                 case LD_BYTEARRAY: {
                     int idx = insn.getOperandAsIndex();
-                    long addr = unit.bytearrayPool.get(idx).mappedAddress;
-                    INativeFieldItem item = getNativeContext().getField(addr);
+                    INativeFieldItem item = symbols.getBytearrayField(idx);
                     IEVar symbol = ctx.createSymbolForField(item);
                     pushAssign(e, SignatureToken.stBytearray, symbol);
                     break;
                 }
                 case LD_STR: {
                     int idx = insn.getOperandAsIndex();
-                    long addr = unit.stringPool.get(idx).mappedAddress;
-                    INativeFieldItem item = getNativeContext().getField(addr);
+                    INativeFieldItem item = symbols.getStringField(idx);
                     IEVar symbol = ctx.createSymbolForField(item);
                     pushAssign(e, SignatureToken.stString, symbol);
                     break;
@@ -401,16 +445,18 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
 
                     IEVar arg_addr = pop();
 
-                    SignatureToken token = new SignatureToken(sd.getHandleIndex());
-                    token = new SignatureToken(token, true);
+                    SignatureToken token = unit.getReferenceToken(unit.getStructToken(sd.getHandleIndex()), true);
                     IEVar res = push(token);
 
                     e.r.add(createUntranslated(ctx, address, insn, res, arg_addr));
                     break;
                 }
                 case FREEZE_REF: {
+                    // same token as the stack verifier: values held across blocks must be keyed identically in
+                    // the stack variable pools
+                    SignatureToken token = DiemStackVerifier.getFrozenToken(unit, peekToken());
                     IEVar arg_mutref = pop();
-                    IEVar res = pushForce(arg_mutref.getType());
+                    IEVar res = push(token);
                     e.r.add(createUntranslated(ctx, address, insn, res, arg_mutref));
                     break;
                 }
@@ -420,11 +466,9 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
 
                     IEVar arg_ref = pop();
 
-                    SignatureToken token = field.getSignature(unit).getToken();
-                    token = new SignatureToken(token, true);
+                    SignatureToken token = unit.getReferenceToken(field.getSignature(unit).getToken(), true);
 
-                    long fieldNameAddr = unit.stringPool.get(field.name_index).mappedAddress;
-                    INativeFieldItem fieldNameItem = getNativeContext().getField(fieldNameAddr);
+                    INativeFieldItem fieldNameItem = symbols.getStringField(field.name_index);
                     IEVar arg_fieldname = ctx.createSymbolForField(fieldNameItem);
 
                     IEVar res = push(token);
@@ -433,19 +477,11 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                     break;
                 }
                 case READ_REF: { //*
+                    // the referenced value is typed by the pointed token (same as the stack verifier)
+                    SignatureToken token = peekToken();
                     IEVar arg_ref = pop();
-
-                    // arg_ref should have a type: we're setting types early on in this converter
-                    IEVar res;
-                    IWildcardType t = arg_ref.getType();
-                    if(t != null && t.getNativeType() instanceof IReferenceType) {
-                        INativeType nt = ((IReferenceType)t.getNativeType()).getPointedType();
-                        t = ctx.getWildcardTypeManager().create(nt);
-                        res = pushForce(t);//SignatureToken.stAnyMutableRef);
-                    }
-                    else {
-                        res = push(SignatureToken.stAnyMutableRef);
-                    }
+                    IEVar res = push(token != null && token.getReference() != null ? token.getReference()
+                            : SignatureToken.stAnyMutableRef);
                     e.r.add(createUntranslated(ctx, address, insn, res, arg_ref));
                     break;
                 }
@@ -464,8 +500,7 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                         opnds[popcnt - 1 - opndindex] = pop();
                     }
 
-                    SignatureToken token = new SignatureToken(sd.getHandleIndex());
-                    token = new SignatureToken(token, true);
+                    SignatureToken token = unit.getReferenceToken(unit.getStructToken(sd.getHandleIndex()), true);
 
                     IEGeneric res = push(token);
                     e.r.add(createUntranslated(ctx, address, insn, res, opnds));
@@ -499,11 +534,11 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                 }
                 case MOVE_FROM: {
                     int idx = insn.getOperandAsIndex();
-                    @SuppressWarnings("unused")  // TODO: provide struct info
                     StructDef sd = unit.structDefs.get(idx);
                     IEVar arg_addr = pop();
-                    //createVariable("pseudoVar", 64);
-                    e.r.add(createUntranslated(ctx, address, insn, null, arg_addr));
+                    // the resource is pushed, as accounted for by the parser and the verifier
+                    IEVar res = push(unit.getStructToken(sd.getHandleIndex()));
+                    e.r.add(createUntranslated(ctx, address, insn, res, arg_addr));
                     break;
                 }
                 case EXISTS: {
@@ -517,8 +552,8 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                 }
                 case LD_REF_LOC: {
                     int idx = insn.getOperandAsIndex();
-                    SignatureToken token = functionDef.getCode().getLocals(unit).getTokens().get(idx);
-                    token = new SignatureToken(token, false);
+                    SignatureToken token = unit.getReferenceToken(
+                            functionDef.getCode().getLocals(unit).getTokens().get(idx), false);
                     IEVar local = getLocalSlot(idx);
                     IEVar res = push(token);
                     e.r.add(createUntranslated(ctx, address, insn, res, local));
@@ -541,7 +576,7 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
 
                     IEGeneric[] opnds = new IEGeneric[popcnt];
                     for(int opndindex = 0; opndindex < popcnt; opndindex++) {
-                        opnds[popcnt - 1 - opndindex] = pop();  // diem convention, arguments are pushed from 1st to last, so we're pop'ing teh last first
+                        opnds[popcnt - 1 - opndindex] = popValue();  // diem convention, arguments are pushed from 1st to last, so we're pop'ing teh last first
                     }
                     IEGeneric res = null;
 
@@ -577,9 +612,12 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
                 }
                 //@formatter:on
 
+                if(tracer.isEnabled()) {
+                    tracer.record(DiemTracer.Event.CONVERT_INSN, opcode.getOpcode(), irAddress, r.size(), 0, address);
+                }
+
                 // note: "size" of an IR statement is set to 1 here (therefore, first address is: 0, second: 1, etc)
                 for(IEStatement stm: r) {
-                    logger.i("0x%X -> %s", address, stm);
                     stm.setLowerLevelAddress(address);
                     interlist.add(stm);
                 }
@@ -593,6 +631,7 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
             logger.error("Error: Instruction cannot be converted: %Xh: %s: %s", address,
                     Formatter.byteArrayToHexString(insn.getCode()), insn.format(address));
             logger.catchingSilent(ex);
+            tracer.dump(logger, String.format("Cannot convert instruction at %Xh", address));
             throw ex;
         }
         finally {
@@ -646,6 +685,11 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
     }
 
     void pushAssign(ConverterInstructionEntry<DiemInstruction> e, SignatureToken st, IEGeneric expression) {
+        if(foldValue) {
+            // the consumer reads the expression, see DiemStackless
+            pushExpression(expression);
+            return;
+        }
         IEVar stkvar;
         if(st == null) {
             stkvar = pushForce(expression.getBitsize());
@@ -657,76 +701,114 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
     }
 
     IEVar pushForce(int bitsize) {
-        IEVar stkvar;
-        if(opndstackIndex < opndstack.size()) {
-            stkvar = createVariable(PFX_STACK + opndstackCounter, bitsize);
-            opndstack.set(opndstackIndex, new StackSlot(stkvar, null));
-            opndstackCounter++;
-        }
-        else {
-            stkvar = createVariable(PFX_STACK + opndstackCounter, bitsize);
-            opndstack.add(new StackSlot(stkvar, null));
-            opndstackCounter++;
-        }
-        opndstackIndex++;
-        return stkvar;
+        return pushVariable(bitsize, bitsize, null);
     }
 
     IEVar pushForce(IWildcardType type) {
-        IEVar stkvar;
-        if(opndstackIndex < opndstack.size()) {
-            stkvar = createVariable(PFX_STACK + opndstackCounter, type.getBitsize());
-            opndstack.set(opndstackIndex, new StackSlot(stkvar, null));
-            opndstackCounter++;
-        }
-        else {
-            stkvar = createVariable(PFX_STACK + opndstackCounter, type.getBitsize());
-            opndstack.add(new StackSlot(stkvar, null));
-            opndstackCounter++;
-        }
-        stkvar.setType(type);
-        opndstackIndex++;
-        return stkvar;
+        return pushVariable(type, type.getBitsize(), type);
     }
 
     IEVar push(SignatureToken st) {
         Assert.a(st != null);
 
-        INativeType nativeType = convertDiemType(st);
-        IWildcardType type = ctx.getWildcardTypeManager().create(nativeType);
+        IWildcardType type = getWildcardType(ctx, st);
+        // tokens are interned, lookups are mostly identity checks
+        return pushVariable(st, type.getBitsize()/*getDiemTypeBitsize(st)*/, type);
+    }
 
-        IEVar stkvar;
-        if(opndstackIndex < opndstack.size()) {
-            StackSlot slot = opndstack.get(opndstackIndex);
-            if(slot.st != null && slot.st.equals(st)) {
-                stkvar = slot.var;
-            }
-            else {
-                stkvar = createVariable(PFX_STACK + opndstackCounter, type.getBitsize()/*getDiemTypeBitsize(st)*/);
+    private void pushExpression(IEGeneric expression) {
+        ensureStackCapacity();
+        opndexprs[opndstackIndex++] = expression;
+    }
+
+    private void ensureStackCapacity() {
+        if(opndstackIndex == opndstack.length) {
+            // the max stack size is declared by the module: do not trust it
+            opndstack = Arrays.copyOf(opndstack, opndstack.length * 2);
+            opndtokens = Arrays.copyOf(opndtokens, opndstack.length);
+            opndexprs = Arrays.copyOf(opndexprs, opndstack.length);
+        }
+    }
+
+    private IEVar pushVariable(Object key, int bitsize, IWildcardType type) {
+        ensureStackCapacity();
+        while(opndstackVars.size() <= opndstackIndex) {
+            opndstackVars.add(new HashMap<>());
+        }
+        Map<Object, IEVar> vars = opndstackVars.get(opndstackIndex);
+        IEVar stkvar = vars.get(key);
+        if(stkvar == null) {
+            stkvar = createVariable(PFX_STACK + opndstackCounter, bitsize);
+            if(type != null) {
                 stkvar.setType(type);
-                opndstack.set(opndstackIndex, new StackSlot(stkvar, st));
-                opndstackCounter++;
             }
-        }
-        else {
-            stkvar = createVariable(PFX_STACK + opndstackCounter, type.getBitsize()/*getDiemTypeBitsize(st)*/);
-            stkvar.setType(type);
-            opndstack.add(new StackSlot(stkvar, st));
             opndstackCounter++;
+            vars.put(key, stkvar);
         }
-        opndstackIndex++;
+        opndtokens[opndstackIndex] = key instanceof SignatureToken ? (SignatureToken)key: null;
+        opndexprs[opndstackIndex] = null;
+        opndstack[opndstackIndex++] = stkvar;
         return stkvar;
     }
 
+    /**
+     * Set up the operand stack on entry of a block, using the types determined by the verifier. The
+     * block need not start a verifier block: the stack state is then derived from the entry state of
+     * the enclosing verifier block, independently of the order in which blocks are converted.
+     */
+    private void enterBlock(DiemInstruction first, int index) {
+        // folded values never cross blocks
+        Arrays.fill(opndexprs, null);
+        CodeUnit code = functionDef.getCode();
+        DiemStackVerifier.BlockStacks stacks = code.getBlockStacks();
+        SignatureToken[] types = index < 0 || stacks == null ? null
+                : DiemStackVerifier.getStackAt(unit, code, code.getInstructionTable(), stacks, index);
+        if(types == null) {
+            // unverified stack, or unreachable code: rely on the linear stack deltas
+            opndstackIndex = first.getPreExecStackDelta();
+            return;
+        }
+        opndstackIndex = 0;
+        for(SignatureToken type: types) {
+            // same variable as the one assigned by the predecessors (the verifier rejects mixed types)
+            push(type);
+        }
+    }
+
+    /**
+     * Pop a value held by a variable. Folded values are only consumed by instructions reading
+     * expressions, see {@link #popValue()}.
+     */
     IEVar pop() {
+        Assert.a(opndstackIndex > 0 && opndexprs[opndstackIndex - 1] == null);
+        return opndstack[--opndstackIndex];
+    }
+
+    /**
+     * @return the token of the topmost value, null if unknown
+     */
+    SignatureToken peekToken() {
+        Assert.a(opndstackIndex > 0);
+        return opndtokens[opndstackIndex - 1];
+    }
+
+    /**
+     * Pop a value: a stack variable, or the expression of a folded value.
+     */
+    IEGeneric popValue() {
         Assert.a(opndstackIndex > 0);
         opndstackIndex--;
-        return opndstack.get(opndstackIndex).var;
+        IEGeneric r = opndexprs[opndstackIndex];
+        if(r != null) {
+            opndexprs[opndstackIndex] = null;
+            return r;
+        }
+        return opndstack[opndstackIndex];
     }
 
     IEVar peek() {
-        Assert.a(opndstackIndex > 0);
-        return opndstack.get(opndstackIndex - 1).var;
+        Assert.a(opndstackIndex > 0 && opndexprs[opndstackIndex - 1] == null);
+        return opndstack[opndstackIndex - 1];
     }
 
     @Override
@@ -736,6 +818,16 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
         return 0;
     }
 
+    /**
+     * Retrieve the native items referenced by the bytecode; the table is created on first use.
+     */
+    DiemSymbolTable getSymbols() {
+        if(symbols == null) {
+            symbols = new DiemSymbolTable(this, getNativeContext(), unit);
+        }
+        return symbols;
+    }
+
     void autoAssignFunctionPrototypes() {
         for(INativeMethodItem routine: pbcu.getMethods()) {
             autoAssignFunctionPrototype(routine, false);
@@ -746,7 +838,7 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
         IPrototypeItem proto = routine.getPrototype();
         if(proto == null || force) {
             FunctionHandle f = unit.getFunctionHandleByName(routine.getName(false));
-            proto = convertDiemPrototype(f.getSignature(unit));
+            proto = getSymbols().getPrototype(f.getSignature(unit));
             routine.setPrototype(proto);
         }
         return proto;
@@ -797,8 +889,44 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
         }
     }
 
+    /**
+     * Convert a Diem type to a native type. Conversions are cached until the type manager changes.
+     */
     INativeType convertDiemType(SignatureToken token) {
         ITypeManager typeman = pbcu.getTypeManager();
+        if(nativeTypes == null || nativeTypesOwner != typeman) {
+            nativeTypes = new HashMap<>();
+            nativeTypesOwner = typeman;
+            // wildcard types wrap native types
+            wildcardTypes = null;
+        }
+        INativeType t = nativeTypes.get(token);
+        if(t == null) {
+            t = createNativeType(typeman, token);
+            nativeTypes.put(token, t);
+        }
+        return t;
+    }
+
+    /**
+     * Convert a Diem type to an IR type of the provided routine context. Conversions are cached for
+     * the routine being converted.
+     */
+    IWildcardType getWildcardType(IERoutineContext ctx, SignatureToken token) {
+        INativeType nt = convertDiemType(token);
+        if(wildcardTypes == null || wildcardTypesOwner != ctx) {
+            wildcardTypes = new HashMap<>();
+            wildcardTypesOwner = ctx;
+        }
+        IWildcardType t = wildcardTypes.get(token);
+        if(t == null) {
+            t = ctx.getWildcardTypeManager().create(nt);
+            wildcardTypes.put(token, t);
+        }
+        return t;
+    }
+
+    private INativeType createNativeType(ITypeManager typeman, SignatureToken token) {
         //IPrimitiveTypeManager pman = typeman.getPrimitives();
 
         switch(token.getSerializedType()) {
@@ -814,7 +942,7 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
             return typeman.getType("string");
         case STRUCT:
             StructHandle sh = token.getStructureHandle(unit);
-            String sname = sh.getFullName(unit).replace('@', '_').replace('.', '_');
+            String sname = sh.getTypeName(unit);
             INativeType stype = typeman.getType(sname);
             if(stype == null) {
                 stype = typeman.createStructure(sname);
@@ -834,22 +962,20 @@ public class DiemConverter extends AbstractConverter<DiemInstruction> {
     }
 
     List<IEVar> getIRParameterVariables(IERoutineContext ctx, FunctionHandle fh) {
-        IWildcardTypeManager etypeman = ctx.getWildcardTypeManager();
         List<IEVar> r = new ArrayList<>();
         List<SignatureToken> tokens = fh.getSignature(unit).getParamTokens();
         for(int index = 0; index < tokens.size(); index++) {
             IEVar var = ctx.getVariableByName(PFX_PARAM + index);
-            var.setType(etypeman.create(convertDiemType(tokens.get(index))));
+            var.setType(getWildcardType(ctx, tokens.get(index)));
             r.add(var);
         }
         return r;
     }
 
     List<IWildcardType> getIRReturnTypes(IERoutineContext ctx, FunctionHandle fh) {
-        IWildcardTypeManager etypeman = ctx.getWildcardTypeManager();
         List<IWildcardType> r = new ArrayList<>();
         for(SignatureToken token: fh.getSignature(unit).getReturnTokens()) {
-            r.add(etypeman.create(convertDiemType(token)));
+            r.add(getWildcardType(ctx, token));
         }
         return r;
     }
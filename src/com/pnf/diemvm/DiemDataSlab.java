@@ -0,0 +1,153 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import com.pnfsoftware.jeb.util.serialization.annotations.Ser;
+import com.pnfsoftware.jeb.util.serialization.annotations.SerId;
+
+/**
+ * Contiguous storage of the address, bytearray, and string pools of a unit.
+ * <p>
+ * The bytes are laid out in mapping order (addresses, bytearrays, strings), so that the slab is
+ * the content of the {@code .data} segment. Entries are identified by their slot, which is their
+ * position in that order. Every entry has its own bytes, identical entries included: each one is
+ * mapped at its own address, with its own symbol.
+ */
+@Ser
+class DiemDataSlab {
+    @SerId(1)
+    private byte[] data;
+    @SerId(2)
+    private int[] offsets;
+    @SerId(3)
+    private int[] lengths;
+
+    /**
+     * Build the slab from the module bytes. The file position of the entries must be set; the
+     * entries are attached to the slab. Strings are stored null-terminated.
+     */
+    DiemDataSlab(ByteBuffer raw, List<AddressEntry> addresses, List<BytearrayEntry> bytearrays,
+            List<StringEntry> strings) {
+        this(raw, null, addresses, bytearrays, strings);
+    }
+
+    /**
+     * @param positions offset and size in the source bytes of each entry, in slot order (2 values per
+     * entry); null to use the file position of the entries
+     */
+    private DiemDataSlab(ByteBuffer raw, int[] positions, List<AddressEntry> addresses,
+            List<BytearrayEntry> bytearrays, List<StringEntry> strings) {
+        int cnt = addresses.size() + bytearrays.size() + strings.size();
+        offsets = new int[cnt];
+        lengths = new int[cnt];
+
+        long total = strings.size();
+        int slot = 0;
+        for(List<? extends AbstractDataEntry> pool: List.of(addresses, bytearrays, strings)) {
+            for(AbstractDataEntry e: pool) {
+                total += positions == null ? e.fileSize: positions[2 * slot + 1];
+                slot++;
+            }
+        }
+        if(total > Integer.MAX_VALUE) {
+            throw new RuntimeException("Data pools are too large");
+        }
+        data = new byte[(int)total];
+
+        ByteBuffer src = raw.duplicate();
+        int size = 0;
+        slot = 0;
+        for(List<? extends AbstractDataEntry> pool: List.of(addresses, bytearrays, strings)) {
+            boolean terminated = pool == strings;
+            for(AbstractDataEntry e: pool) {
+                int len = positions == null ? e.fileSize: positions[2 * slot + 1];
+                src.position(positions == null ? e.fileOffset: positions[2 * slot]);
+                src.get(data, size, len);
+                if(terminated) {
+                    data[size + len++] = 0;
+                }
+                offsets[slot] = size;
+                lengths[slot] = len;
+                size += len;
+                e.attach(this, slot);
+                slot++;
+            }
+        }
+    }
+
+    /**
+     * Rebuild the slab of a project saved before the slab was used: the bytes were held by the pool
+     * entries. The entries are attached to the new slab; their file positions are left unchanged.
+     */
+    static DiemDataSlab rebuild(List<AddressEntry> addresses, List<BytearrayEntry> bytearrays,
+            List<StringEntry> strings) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] positions = new int[2 * (addresses.size() + bytearrays.size() + strings.size())];
+        int slot = 0;
+        for(List<? extends AbstractDataEntry> pool: List.of(addresses, bytearrays, strings)) {
+            for(AbstractDataEntry e: pool) {
+                byte[] b = e.takeLegacyBytes();
+                if(b == null) {
+                    // the project was saved before the module was fully loaded
+                    b = new byte[0];
+                }
+                positions[2 * slot] = out.size();
+                positions[2 * slot + 1] = b.length;
+                out.writeBytes(b);
+                slot++;
+            }
+        }
+        return new DiemDataSlab(ByteBuffer.wrap(out.toByteArray()), positions, addresses, bytearrays, strings);
+    }
+
+    /**
+     * @return the slab bytes; the array is not a copy and must not be modified
+     */
+    byte[] getData() {
+        return data;
+    }
+
+    int getSize() {
+        return data.length;
+    }
+
+    int getOffset(int slot) {
+        return offsets[slot];
+    }
+
+    int getLength(int slot) {
+        return lengths[slot];
+    }
+
+    /** @return a copy of the entry bytes */
+    byte[] getBytes(int slot) {
+        return Arrays.copyOfRange(data, offsets[slot], offsets[slot] + lengths[slot]);
+    }
+
+    /** @return the string stored in a slot, decoded without its terminator */
+    String getString(int slot) {
+        return new String(data, offsets[slot], lengths[slot] - 1, StandardCharsets.UTF_8);
+    }
+}
@@ -27,6 +27,8 @@ import com.pnfsoftware.jeb.core.IUnitCreator;
 import com.pnfsoftware.jeb.core.PluginInformation;
 import com.pnfsoftware.jeb.core.Version;
 import com.pnfsoftware.jeb.core.input.IInput;
+import com.pnfsoftware.jeb.core.properties.IPropertyDefinitionManager;
+import com.pnfsoftware.jeb.core.properties.impl.PropertyTypeBoolean;
 import com.pnfsoftware.jeb.core.units.AbstractUnitIdentifier;
 import com.pnfsoftware.jeb.core.units.IUnit;
 import com.pnfsoftware.jeb.core.units.IUnitProcessor;
@@ -45,10 +47,21 @@ public class DiemIdentifier extends AbstractUnitIdentifier {
     public static final String TYPE = "diemvm";
     public static final Version VERSION = Version.create(0, 4, 2);
 
+    public static final String propnameLazyBytecodeParsing = "LazyBytecodeParsing";
+    public static final String propnameTracing = "Tracing";
+
     public DiemIdentifier() {
         super(TYPE, 0);
     }
 
+    @Override
+    public void setupCustomProperties(IPropertyDefinitionManager pdm) {
+        pdm.addDefinition(propnameLazyBytecodeParsing, PropertyTypeBoolean.create(false),
+                "Decode the bytecode of a routine when it is first accessed, instead of when the module is loaded");
+        pdm.addDefinition(propnameTracing, PropertyTypeBoolean.create(false),
+                "Keep a trace of the latest parsing and conversion events, logged when a module or routine cannot be processed");
+    }
+
     @Override
     public IPluginInformation getPluginInformation() {
         return new PluginInformation("Diem contract parser", "Parser for Diem VM binary modules and scripts (1.0) ",
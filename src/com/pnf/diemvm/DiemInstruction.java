@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.Set;
 
 import com.pnf.diemvm.Diem.OpcodeDef;
+import com.pnf.diemvm.Diem.OpndType;
 import com.pnfsoftware.jeb.core.units.code.CodePointer;
 import com.pnfsoftware.jeb.core.units.code.FlowInformation;
 import com.pnfsoftware.jeb.core.units.code.IFlowInformation;
@@ -33,37 +34,66 @@ import com.pnfsoftware.jeb.util.serialization.annotations.SerId;
 
 /**
  * Representation of a Diem instruction. 
+ * <p>
+ * Instructions are lightweight views over a row of the {@link DiemInstructionTable} of a routine,
+ * where the instruction attributes are stored.
  *
  * @author Nicolas Falliere
  *
  */
 @Ser
 public class DiemInstruction implements IInstruction {
+    @SerId(9)
+    DiemInstructionTable table;
+    @SerId(10)
+    int index;
+
+    // attributes of the instructions of projects saved before instruction tables were used; they are
+    // only read to convert the instruction, see CodeUnit#upgradeLegacyInstructions
     @SerId(1)
-    OpcodeDef opdef;
+    private OpcodeDef legacyOpcode;
     @SerId(2)
-    byte[] code;
-    /** 0 or 1 immediate operands; most operands of a an instruction are pushed on the operand stack */
+    private byte[] legacyCode;
     @SerId(3)
-    DiemInstructionOperand[] opnds;
-
+    private DiemInstructionOperand[] legacyOperands;
     @SerId(4)
-    int preExecStackDelta;
+    private int legacyPreExecStackDelta;
     @SerId(5)
-    int postExecStackDelta;
-    @SerId(6)
-    int indexInFunction;
-    @SerId(7)
-    int offsetInFunction;
-    @SerId(8)
-    int targetDelta;  // for branch instructions
-
-    public DiemInstruction(Diem.OpcodeDef opdef) {
-        this.opdef = opdef;
+    private int legacyPostExecStackDelta;
+
+    DiemInstruction(DiemInstructionTable table, int index) {
+        this.table = table;
+        this.index = index;
+    }
+
+    /**
+     * Convert an instruction of an old project: its attributes are written to the provided row, and
+     * the instruction becomes a view over that row.
+     * 
+     * @param offset offset of the instruction, relative to the start of the routine
+     * @return the instruction size
+     */
+    int upgrade(DiemInstructionTable table, int index, int offset) {
+        long operand = legacyOperands == null || legacyOperands.length == 0 ? 0
+                : ((Number)legacyOperands[0].getObject()).longValue();
+        table.set(index, legacyOpcode.getOpcode(), operand, offset);
+        table.setStackDeltas(index, legacyPreExecStackDelta, legacyPostExecStackDelta);
+        int size = legacyCode.length;
+        this.table = table;
+        this.index = index;
+        legacyOpcode = null;
+        legacyCode = null;
+        legacyOperands = null;
+        return size;
+    }
+
+    /** bytes of an instruction of an old project, see {@link #upgrade(DiemInstructionTable, int, int)} */
+    byte[] getLegacyCode() {
+        return legacyCode;
     }
 
     public OpcodeDef getOpcode() {
-        return opdef;
+        return table.getOpcode(index);
     }
 
     @Override
@@ -73,30 +103,63 @@ public class DiemInstruction implements IInstruction {
 
     @Override
     public int getSize() {
-        return code.length;
+        return table.getSize(index);
     }
 
     @Override
     public byte[] getCode() {
-        return code;
+        return table.getCode(index);
     }
 
     @Override
     public String getMnemonic() {
-        return opdef.toString();
+        return getOpcode().toString();
     }
 
+    /** 0 or 1 immediate operands; most operands of a an instruction are pushed on the operand stack */
     @Override
     public DiemInstructionOperand[] getOperands() {
-        return opnds;
+        OpndType opndtype = getOpcode().getOperandType();
+        switch(opndtype) {
+        case None:
+            return new DiemInstructionOperand[]{};
+        case ImmUint64:
+            return new DiemInstructionOperand[]{new DiemInstructionOperand(opndtype, getOperandAsLong())};
+        default:
+            return new DiemInstructionOperand[]{new DiemInstructionOperand(opndtype, getOperandAsIndex())};
+        }
     }
 
     public long getOperandAsLong() {
-        return (long)opnds[0].getObject();
+        return table.getOperand(index);
     }
 
     public int getOperandAsIndex() {
-        return (int)opnds[0].getObject();
+        return (int)table.getOperand(index);
+    }
+
+    public int getIndexInFunction() {
+        return index;
+    }
+
+    public int getOffsetInFunction() {
+        return table.getOffset(index);
+    }
+
+    public int getPreExecStackDelta() {
+        return table.getPreExecStackDelta(index);
+    }
+
+    public int getPostExecStackDelta() {
+        return table.getPostExecStackDelta(index);
+    }
+
+    /** for branch instructions: offset of the target, relative to this instruction; 0 otherwise */
+    public int getTargetDelta() {
+        if(getOpcode().getOperandType() != OpndType.Branch) {
+            return 0;
+        }
+        return table.getOffset(getOperandAsIndex()) - table.getOffset(index);
     }
 
     @Override
@@ -106,6 +169,7 @@ public class DiemInstruction implements IInstruction {
 
     @Override
     public IFlowInformation getBreakingFlow(long instructionAddress) {
+        OpcodeDef opdef = getOpcode();
         if(opdef == OpcodeDef.RET) {
             return new FlowInformation();
         }
@@ -117,8 +181,8 @@ public class DiemInstruction implements IInstruction {
             if(opdef == OpcodeDef.BR_TRUE || opdef == OpcodeDef.BR_FALSE) {
                 f.addTarget(new CodePointer(instructionAddress + getSize()));
             }
-            // calculate the target as if it were an address, thanks to the target-delta previously stored by the bc parser
-            f.addTarget(new CodePointer(instructionAddress + targetDelta));
+            // calculate the target as if it were an address, using the target-delta provided by the instruction table
+            f.addTarget(new CodePointer(instructionAddress + getTargetDelta()));
             return f;
         }
         return FlowInformation.NONE;
@@ -126,7 +190,7 @@ public class DiemInstruction implements IInstruction {
 
     @Override
     public IFlowInformation getRoutineCall(long instructionAddress) {
-        if(opdef == OpcodeDef.CALL) {
+        if(getOpcode() == OpcodeDef.CALL) {
             // not super important since we're dealing with pre-parsed bytecode routines
             // TODO: however will add else missing xrefs 
             return new FlowInformation();
@@ -159,11 +223,29 @@ public class DiemInstruction implements IInstruction {
     public String format(Object context) {
         long address = context instanceof Long ? (long)context: 0L;
         StringBuilder sb = new StringBuilder();
-        sb.append(opdef.toString());
-        if(opnds != null && opnds.length == 1) {
+        sb.append(getOpcode().toString());
+        DiemInstructionOperand[] opnds = getOperands();
+        if(opnds.length == 1) {
             sb.append(" ").append(opnds[0].format(this, address));
         }
-        return String.format("%-30s     [%d,%d]", sb.toString(), preExecStackDelta, postExecStackDelta);
+        return String.format("%-30s     [%d,%d]", sb.toString(), getPreExecStackDelta(), getPostExecStackDelta());
+    }
+
+    @Override
+    public int hashCode() {
+        return table.hashCode() * 31 + index;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+        if(!(obj instanceof DiemInstruction)) {
+            return false;
+        }
+        DiemInstruction other = (DiemInstruction)obj;
+        return table == other.table && index == other.index;
     }
 
     @Override
@@ -0,0 +1,166 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.pnf.diemvm.Diem.OpcodeDef;
+import com.pnfsoftware.jeb.util.serialization.annotations.Ser;
+import com.pnfsoftware.jeb.util.serialization.annotations.SerId;
+
+/**
+ * Packed storage for the instructions of a routine: one primitive column per instruction attribute.
+ * {@link DiemInstruction} objects are lightweight views over a row of this table.
+ * <p>
+ * The instruction bytes are not stored: they are read from the module bytes when requested.
+ */
+@Ser
+class DiemInstructionTable {
+    /** module owning the bytecode; null for stand-alone tables, which hold their own bytes */
+    @SerId(1)
+    private DiemUnit unit;
+    /** stand-alone tables only */
+    @SerId(2)
+    private byte[] bytes;
+    /** file offset of the first instruction */
+    @SerId(3)
+    private int baseOffset;
+
+    @SerId(4)
+    private byte[] opcodes;
+    /** immediate operand, if any (branch target index, uint64, or pool index) */
+    @SerId(5)
+    private long[] operands;
+    /** instruction offsets relative to baseOffset; one extra entry holds the total size */
+    @SerId(6)
+    private int[] offsets;
+    /** unsigned 16-bit stack deltas, before and after execution */
+    @SerId(7)
+    private short[] preStack;
+    @SerId(8)
+    private short[] postStack;
+
+    DiemInstructionTable(DiemUnit unit, byte[] bytes, int baseOffset, int count) {
+        this.unit = unit;
+        this.bytes = bytes;
+        this.baseOffset = baseOffset;
+        opcodes = new byte[count];
+        operands = new long[count];
+        offsets = new int[count + 1];
+        preStack = new short[count];
+        postStack = new short[count];
+    }
+
+    int size() {
+        return opcodes.length;
+    }
+
+    DiemInstruction get(int index) {
+        if(index < 0 || index >= opcodes.length) {
+            throw new IndexOutOfBoundsException("Illegal instruction index: " + index);
+        }
+        return new DiemInstruction(this, index);
+    }
+
+    /** list of views over all instructions */
+    List<DiemInstruction> asList() {
+        return new InstructionList();
+    }
+
+    private class InstructionList extends AbstractList<DiemInstruction> implements RandomAccess {
+        @Override
+        public DiemInstruction get(int index) {
+            return DiemInstructionTable.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return opcodes.length;
+        }
+    }
+
+    /**
+     * @return the index of the instruction starting at the provided offset (relative to the start of
+     *         the routine), -1 if none
+     */
+    int indexAt(int offset) {
+        int i = Arrays.binarySearch(offsets, 0, opcodes.length, offset);
+        return i < 0 ? -1: i;
+    }
+
+    /** total size of the instructions, in bytes */
+    int getByteSize() {
+        return offsets[opcodes.length];
+    }
+
+    void set(int index, int opcode, long operand, int offset) {
+        opcodes[index] = (byte)opcode;
+        operands[index] = operand;
+        offsets[index] = offset;
+    }
+
+    void setEndOffset(int offset) {
+        offsets[opcodes.length] = offset;
+    }
+
+    void setStackDeltas(int index, int pre, int post) {
+        if(pre > 0xFFFF || post > 0xFFFF) {
+            throw new RuntimeException("Stack delta overflow");
+        }
+        preStack[index] = (short)pre;
+        postStack[index] = (short)post;
+    }
+
+    OpcodeDef getOpcode(int index) {
+        return OpcodeDef.fromValue(opcodes[index] & 0xFF);
+    }
+
+    long getOperand(int index) {
+        return operands[index];
+    }
+
+    int getOffset(int index) {
+        return offsets[index];
+    }
+
+    int getSize(int index) {
+        return offsets[index + 1] - offsets[index];
+    }
+
+    int getPreExecStackDelta(int index) {
+        return preStack[index] & 0xFFFF;
+    }
+
+    int getPostExecStackDelta(int index) {
+        return postStack[index] & 0xFFFF;
+    }
+
+    /** copy of the instruction bytes */
+    byte[] getCode(int index) {
+        int offset = baseOffset + offsets[index];
+        int size = getSize(index);
+        if(unit == null) {
+            return Arrays.copyOfRange(bytes, offset, offset + size);
+        }
+        return new DiemReader(unit.getRawData(), 0).getBytes(offset, size);
+    }
+}
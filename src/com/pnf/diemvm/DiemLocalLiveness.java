@@ -0,0 +1,182 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.util.BitSet;
+
+import com.pnf.diemvm.Diem.OpcodeDef;
+
+/**
+ * Liveness of the locals of a routine, used to elide the invalidation of moved locals.
+ * <p>
+ * The converter models a MOVE_LOC by clearing the moved local. The store is dead unless the local
+ * may be read after the move without an intervening ST_LOC, which bytecode accepted by the Diem
+ * verifier never does. Liveness is computed backward over the verified blocks of the routine. A
+ * local whose reference is taken anywhere in the routine is conservatively considered live, since
+ * it may be read through the reference. If the stack of the routine could not be verified, all
+ * moved locals are considered live.
+ */
+class DiemLocalLiveness {
+
+    /**
+     * Determine the moves whose local may be read afterwards.
+     * 
+     * @return the indices of the MOVE_LOC instructions whose moved local must be invalidated
+     */
+    static BitSet getLiveMoves(CodeUnit code) {
+        return getLiveMoves(code.getInstructionTable(), code.getBlockStacks());
+    }
+
+    /**
+     * Determine the moves whose local may be read afterwards.
+     * 
+     * @param stacks entry stacks of the routine's blocks, null if the stack could not be verified
+     * @return the indices of the MOVE_LOC instructions whose moved local must be invalidated
+     */
+    static BitSet getLiveMoves(DiemInstructionTable table, DiemStackVerifier.BlockStacks stacks) {
+        int n = table.size();
+        BitSet r = new BitSet(n);
+        BitSet borrowed = new BitSet();
+        boolean moves = false;
+        for(int i = 0; i < n; i++) {
+            switch(table.getOpcode(i)) {
+            case MOVE_LOC:
+                moves = true;
+                break;
+            case LD_REF_LOC:
+                borrowed.set((int)table.getOperand(i));
+                break;
+            default:
+                ;
+            }
+        }
+        if(!moves) {
+            return r;
+        }
+
+        if(stacks == null) {
+            for(int i = 0; i < n; i++) {
+                if(table.getOpcode(i) == OpcodeDef.MOVE_LOC) {
+                    r.set(i);
+                }
+            }
+            return r;
+        }
+        int bcnt = stacks.getBlockCount();
+
+        // per block: gen = locals read before being stored, kill = locals stored
+        BitSet[] gen = new BitSet[bcnt];
+        BitSet[] kill = new BitSet[bcnt];
+        for(int b = 0; b < bcnt; b++) {
+            gen[b] = new BitSet();
+            kill[b] = new BitSet();
+            for(int i = getBlockEnd(stacks, b, n) - 1; i >= stacks.getBlockStart(b); i--) {
+                switch(table.getOpcode(i)) {
+                case ST_LOC:
+                    gen[b].clear((int)table.getOperand(i));
+                    kill[b].set((int)table.getOperand(i));
+                    break;
+                case COPY_LOC:
+                case MOVE_LOC:
+                case LD_REF_LOC:
+                    gen[b].set((int)table.getOperand(i));
+                    break;
+                default:
+                    ;
+                }
+            }
+        }
+
+        // live-in sets, iterated to a fixpoint
+        BitSet[] liveIn = new BitSet[bcnt];
+        for(int b = 0; b < bcnt; b++) {
+            liveIn[b] = (BitSet)gen[b].clone();
+        }
+        boolean changed;
+        do {
+            changed = false;
+            for(int b = bcnt - 1; b >= 0; b--) {
+                BitSet live = getLiveOut(table, stacks, liveIn, b, n);
+                live.andNot(kill[b]);
+                live.or(gen[b]);
+                if(!live.equals(liveIn[b])) {
+                    liveIn[b] = live;
+                    changed = true;
+                }
+            }
+        }
+        while(changed);
+
+        for(int b = 0; b < bcnt; b++) {
+            BitSet live = getLiveOut(table, stacks, liveIn, b, n);
+            for(int i = getBlockEnd(stacks, b, n) - 1; i >= stacks.getBlockStart(b); i--) {
+                switch(table.getOpcode(i)) {
+                case ST_LOC:
+                    live.clear((int)table.getOperand(i));
+                    break;
+                case MOVE_LOC: {
+                    int local = (int)table.getOperand(i);
+                    if(live.get(local) || borrowed.get(local)) {
+                        r.set(i);
+                    }
+                    live.set(local);
+                    break;
+                }
+                case COPY_LOC:
+                case LD_REF_LOC:
+                    live.set((int)table.getOperand(i));
+                    break;
+                default:
+                    ;
+                }
+            }
+        }
+        return r;
+    }
+
+    private static int getBlockEnd(DiemStackVerifier.BlockStacks stacks, int b, int n) {
+        return b + 1 < stacks.getBlockCount() ? stacks.getBlockStart(b + 1): n;
+    }
+
+    private static BitSet getLiveOut(DiemInstructionTable table, DiemStackVerifier.BlockStacks stacks,
+            BitSet[] liveIn, int b, int n) {
+        BitSet r = new BitSet();
+        int end = getBlockEnd(stacks, b, n);
+        int last = end - 1;
+        switch(table.getOpcode(last)) {
+        case RET:
+            break;
+        case BRANCH:
+            r.or(liveIn[stacks.getBlockAt((int)table.getOperand(last))]);
+            break;
+        case BR_TRUE:
+        case BR_FALSE:
+            r.or(liveIn[stacks.getBlockAt((int)table.getOperand(last))]);
+            if(end < n) {
+                r.or(liveIn[b + 1]);
+            }
+            break;
+        default:
+            if(end < n) {
+                r.or(liveIn[b + 1]);
+            }
+        }
+        return r;
+    }
+}
@@ -18,17 +18,20 @@
 
 package com.pnf.diemvm;
 
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayOutputStream;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 
 import com.pnf.diemvm.Diem.SerializedType;
+import com.pnfsoftware.jeb.core.units.code.asm.processor.ProcessorException;
 import com.pnfsoftware.jeb.util.format.Formatter;
 import com.pnfsoftware.jeb.util.format.TextBuilder;
 import com.pnfsoftware.jeb.util.serialization.annotations.Ser;
 import com.pnfsoftware.jeb.util.serialization.annotations.SerId;
+import com.pnfsoftware.jeb.util.serialization.annotations.SerTransient;
 
 /**
  * Generic interface for Diem objects.
@@ -49,11 +52,31 @@ public interface DiemObject {
 }
 
 /**
- * Super type for {@code address}, {@code bytearray}, and {@code string} types.
+ * Super type for {@code address}, {@code bytearray}, and {@code string} types. The bytes are stored
+ * in the data slab of the unit (see {@link DiemDataSlab}), which is built once the pools are read.
  */
+@Ser
 abstract class AbstractDataEntry extends DiemPoolEntry {
+    @SerId(1)
+    DiemDataSlab slab;
+    @SerId(2)
+    int slot;
+
+    void attach(DiemDataSlab slab, int slot) {
+        this.slab = slab;
+        this.slot = slot;
+    }
+
+    /** @return a copy of the bytes mapped in the data segment */
+    byte[] getBytes() {
+        return slab.getBytes(slot);
+    }
 
-    abstract byte[] getBytes();
+    /**
+     * Retrieve and release the bytes held by the entry in projects saved before the data slab was
+     * used, see {@link DiemDataSlab#rebuild(List, List, List)}.
+     */
+    abstract byte[] takeLegacyBytes();
 }
 
 @Ser
@@ -63,6 +86,10 @@ class ModuleHandle extends DiemPoolEntry {
     @SerId(2)
     private int name_index;  // String
 
+    /** memoized, see getFullName */
+    @SerTransient
+    private String fullname;
+
     public ModuleHandle(int address_index, int name_index) {
         this.address_index = address_index;
         this.name_index = name_index;
@@ -77,7 +104,12 @@ class ModuleHandle extends DiemPoolEntry {
     }
 
     public String getFullName(DiemUnit l) {
-        return l.addressPool.get(address_index) + "." + l.stringPool.get(name_index).get();
+        String r = fullname;
+        if(r == null) {
+            r = l.addressPool.get(address_index) + "." + l.stringPool.get(name_index).get();
+            fullname = r;
+        }
+        return r;
     }
 
     @Override
@@ -98,6 +130,12 @@ class StructHandle extends DiemPoolEntry {
     @SerId(3)
     private boolean is_resource;
 
+    /** memoized, see getFullName and getTypeName */
+    @SerTransient
+    private String fullname;
+    @SerTransient
+    private String typename;
+
     public StructHandle(int modulehandle_index, int name_index, boolean is_resource) {
         this.modulehandle_index = modulehandle_index;
         this.name_index = name_index;
@@ -117,10 +155,22 @@ class StructHandle extends DiemPoolEntry {
     }
 
     public String getFullName(DiemUnit l) {
-        String s = l.stringPool.get(name_index).get();
-        s += "@";
-        s += l.moduleHandles.get(modulehandle_index).getFullName(l);
-        return s;
+        String r = fullname;
+        if(r == null) {
+            r = l.stringPool.get(name_index).get() + "@" + l.moduleHandles.get(modulehandle_index).getFullName(l);
+            fullname = r;
+        }
+        return r;
+    }
+
+    /** full name usable as a native type name */
+    public String getTypeName(DiemUnit l) {
+        String r = typename;
+        if(r == null) {
+            r = getFullName(l).replace('@', '_').replace('.', '_');
+            typename = r;
+        }
+        return r;
     }
 
     @Override
@@ -144,6 +194,10 @@ class FunctionHandle extends DiemPoolEntry {
     @SerId(3)
     private int signature_index;
 
+    /** memoized, see getFullName */
+    @SerTransient
+    private String fullname;
+
     public FunctionHandle(int modulehandle_index, int name_index, int signature_index) {
         this.modulehandle_index = modulehandle_index;
         this.name_index = name_index;
@@ -160,12 +214,14 @@ class FunctionHandle extends DiemPoolEntry {
     }
 
     private String getFullName(DiemUnit l) {
-        String fname = l.stringPool.get(name_index).get();
-        String modname = l.moduleHandles.get(modulehandle_index).getName(l);
-        if("<self>".equalsIgnoreCase(modname)) {
-            return fname;
+        String r = fullname;
+        if(r == null) {
+            String fname = l.stringPool.get(name_index).get();
+            String modname = l.moduleHandles.get(modulehandle_index).getName(l);
+            r = "<self>".equalsIgnoreCase(modname) ? fname: modname + "_" + fname;
+            fullname = r;
         }
-        return modname + "_" + fname;
+        return r;
     }
 
     public FunctionSignature getSignature(DiemUnit l) {
@@ -184,75 +240,69 @@ class FunctionHandle extends DiemPoolEntry {
 
 @Ser
 class AddressEntry extends AbstractDataEntry {
+    /** old projects only */
     @SerId(1)
-    private byte[] bytes;
-
-    public AddressEntry(byte[] bytes) {
-        this.bytes = bytes;
-    }
+    private byte[] legacyBytes;
 
     @Override
-    public byte[] getBytes() {
-        return bytes;
+    byte[] takeLegacyBytes() {
+        byte[] r = legacyBytes;
+        legacyBytes = null;
+        return r;
     }
 
     @Override
     public String toString() {
-        return "0x" + new BigInteger(bytes).toString(16).toUpperCase();
+        return "0x" + new BigInteger(getBytes()).toString(16).toUpperCase();
     }
 }
 
 @Ser
 class BytearrayEntry extends AbstractDataEntry {
+    /** old projects only */
     @SerId(1)
-    private byte[] bytes;
-
-    public BytearrayEntry(byte[] bytes) {
-        this.bytes = bytes;
-    }
+    private byte[] legacyBytes;
 
     @Override
-    public byte[] getBytes() {
-        return bytes;
+    byte[] takeLegacyBytes() {
+        byte[] r = legacyBytes;
+        legacyBytes = null;
+        return r;
     }
 
     @Override
     public String toString() {
-        return Formatter.byteArrayToHexString(bytes);
+        return Formatter.byteArrayToHexString(getBytes());
     }
 }
 
+/**
+ * UTF-8 string of the pool, mapped null-terminated. The string is decoded on first access.
+ */
 @Ser
 class StringEntry extends AbstractDataEntry {
+    /** decoded string, null until first access */
     @SerId(1)
-    private String s;
+    private volatile String s;
 
-    public StringEntry(String s) {
-        if(s == null) {
-            throw new IllegalArgumentException();
-        }
-        this.s = s;
-    }
-
-    /** UTF-8 encoded, null-terminated */
     @Override
-    public byte[] getBytes() {
-        try {
-            byte[] a = s.getBytes("UTF-8");
-            return Arrays.copyOf(a, a.length + 1);
-        }
-        catch(UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+    byte[] takeLegacyBytes() {
+        // the decoded string was always persisted
+        return s == null ? null: s.getBytes(StandardCharsets.UTF_8);
     }
 
     public String get() {
-        return s;
+        String r = s;
+        if(r == null) {
+            r = slab.getString(slot);
+            s = r;
+        }
+        return r;
     }
 
     @Override
     public String toString() {
-        return s;
+        return get();
     }
 }
 
@@ -379,6 +429,9 @@ class SignatureToken implements DiemObject {
     // for STRUCT
     @SerId(3)
     private Integer sh_index;
+    /** cached hash code, 0 if not computed yet */
+    @SerTransient
+    private int hash;
 
     /**
      * Create a simple (non struct, non ref) token type.
@@ -425,6 +478,29 @@ class SignatureToken implements DiemObject {
         return l.structHandles.get(sh_index);
     }
 
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if(h == 0) {
+            h = 31 * (31 * st.hashCode() + Objects.hashCode(ref)) + Objects.hashCode(sh_index);
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+        if(!(obj instanceof SignatureToken)) {
+            return false;
+        }
+        SignatureToken other = (SignatureToken)obj;
+        return st == other.st && hashCode() == other.hashCode() && Objects.equals(ref, other.ref)
+                && Objects.equals(sh_index, other.sh_index);
+    }
+
     @Override
     public String toString() {
         String s = st.toString();
@@ -472,6 +548,10 @@ class FunctionDef extends DiemPoolEntry {
         return l.functionHandles.get(function_handle_index);
     }
 
+    public int getFunctionHandleIndex() {
+        return function_handle_index;
+    }
+
     public String getName(DiemUnit l) {
         return getHandle(l).getName(l);
     }
@@ -503,54 +583,184 @@ class CodeUnit implements DiemObject {
     private int max_stack_size;
     @SerId(2)
     private int local_sig_index;
+    /** null until the instructions are decoded */
+    @SerId(9)
+    private volatile DiemInstructionTable insntable;
+    /** instructions of projects saved before instruction tables were used, see upgradeLegacyInstructions */
     @SerId(3)
-    private List<DiemInstruction> insnlist;
+    private List<DiemInstruction> legacyInsnlist;
 
     @SerId(4)
     private int bytecode_offset;
+    @SerId(5)
+    private int bytecode_size;
+    @SerId(6)
+    private int insncnt;
+    @SerId(7)
+    private int function_handle_index;
+    @SerId(8)
+    private DiemUnit unit;
+    /** entry stacks of the basic blocks, not persisted (see getBlockStacks) */
+    @SerTransient
+    private volatile DiemStackVerifier.BlockStacks blockStacks;
+    /** true if the stack could not be verified, not persisted */
+    @SerTransient
+    private volatile boolean stackInvalid;
 
-    public CodeUnit(int max_stack_size, int local_sig_index, List<DiemInstruction> insnlist) {
+    /**
+     * Create a code unit. Its instructions will be decoded on first access, see
+     * {@link #getInstructions()}.
+     */
+    public CodeUnit(DiemUnit unit, int function_handle_index, int max_stack_size, int local_sig_index, int insncnt,
+            int bytecode_offset, int bytecode_size) {
+        this.unit = unit;
+        this.function_handle_index = function_handle_index;
         this.max_stack_size = max_stack_size;
         this.local_sig_index = local_sig_index;
-        this.insnlist = insnlist;
+        this.insncnt = insncnt;
+        this.bytecode_offset = bytecode_offset;
+        this.bytecode_size = bytecode_size;
+    }
+
+    /**
+     * Convert a code unit of a project saved before instruction tables were used: the instructions
+     * were stored as a list of objects, and the routine attributes added since then are missing.
+     * The restored instruction objects become views over a stand-alone table.
+     */
+    void upgradeLegacyInstructions(DiemUnit unit, int function_handle_index) {
+        if(legacyInsnlist == null) {
+            return;
+        }
+        this.unit = unit;
+        this.function_handle_index = function_handle_index;
+        insncnt = legacyInsnlist.size();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(DiemInstruction insn: legacyInsnlist) {
+            bytes.writeBytes(insn.getLegacyCode());
+        }
+        DiemInstructionTable table = new DiemInstructionTable(null, bytes.toByteArray(), 0, insncnt);
+        int offset = 0;
+        for(int i = 0; i < insncnt; i++) {
+            offset += legacyInsnlist.get(i).upgrade(table, i, offset);
+        }
+        table.setEndOffset(offset);
+        bytecode_size = offset;
+        insntable = table;
+        legacyInsnlist = null;
     }
 
     public int getMaxStackSize() {
         return max_stack_size;
     }
 
+    public int getFunctionHandleIndex() {
+        return function_handle_index;
+    }
+
+    public int getInstructionCount() {
+        return insncnt;
+    }
+
     public LocalSignature getLocals(DiemUnit l) {
         return l.localSignatures.get(local_sig_index);
     }
 
     public List<DiemInstruction> getInstructions() {
-        return insnlist;
+        return getInstructionTable().asList();
+    }
+
+    DiemInstructionTable getInstructionTable() {
+        DiemInstructionTable r = insntable;
+        if(r == null) {
+            r = decodeInstructions();
+        }
+        return r;
+    }
+
+    private synchronized DiemInstructionTable decodeInstructions() {
+        if(insntable == null) {
+            DiemInstructionTable table;
+            try {
+                table = unit.getBytecodeParser().parseFunction(function_handle_index, insncnt, bytecode_offset,
+                        bytecode_offset + bytecode_size);
+            }
+            catch(ProcessorException e) {
+                throw new RuntimeException(e);
+            }
+            // the stack is verified along with the decoding
+            verifyStacks(table);
+            insntable = table;
+        }
+        return insntable;
+    }
+
+    /**
+     * A routine whose stack cannot be verified is still usable: the failure is reported, and the
+     * consumers of the block stacks fall back on the linear stack deltas.
+     */
+    private void verifyStacks(DiemInstructionTable table) {
+        try {
+            blockStacks = DiemStackVerifier.verify(unit, this, table);
+        }
+        catch(RuntimeException e) {
+            stackInvalid = true;
+            unit.notifyCorruption(String.format("Operand stack of routine %s cannot be verified: %s",
+                    unit.functionHandles.get(function_handle_index).getName(unit), e.getMessage()));
+        }
+    }
+
+    /**
+     * Retrieve the stack heights and types on entry of the basic blocks. They are determined when
+     * the instructions are decoded, or on first use if the instructions were provided by other means
+     * (project reload).
+     * 
+     * @return the block stacks, null if the stack of the routine could not be verified
+     */
+    DiemStackVerifier.BlockStacks getBlockStacks() {
+        DiemStackVerifier.BlockStacks r = blockStacks;
+        if(r == null && !stackInvalid) {
+            DiemInstructionTable table = getInstructionTable();
+            synchronized(this) {
+                if(blockStacks == null && !stackInvalid) {
+                    verifyStacks(table);
+                }
+                r = blockStacks;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Retrieve the instruction starting at the provided offset.
+     * 
+     * @param offset offset relative to the start of the routine
+     * @return the instruction, null if no instruction starts at that offset
+     */
+    public DiemInstruction getInstructionAt(int offset) {
+        DiemInstructionTable table = getInstructionTable();
+        int i = table.indexAt(offset);
+        if(i < 0) {
+            return null;
+        }
+        return table.get(i);
     }
 
     /** instructions size in bytes */
     public int getInsnFileSize() {
-        int size = 0;
-        for(DiemInstruction insn: insnlist) {
-            size += insn.getSize();
-        }
-        return size;
+        return bytecode_size;
     }
 
     public int getInsnFileOffset() {
         return bytecode_offset;
     }
 
-    public void setInsnFileOffset(int offset) {
-        bytecode_offset = offset;
-    }
-
     @Override
     public TextBuilder format(DiemUnit l, TextBuilder t) {
         t.append("max_stack_size: ").append(max_stack_size).eol();
         t.append("locals: ");
         l.localSignatures.get(local_sig_index).format(l, t).eol();
         int i = 0;
-        for(DiemInstruction insn: insnlist) {
+        for(DiemInstruction insn: getInstructions()) {
             t.append(insn.format((long)i)).eol();
             i++;
         }
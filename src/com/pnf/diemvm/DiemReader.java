@@ -0,0 +1,183 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Little-endian reader over a window of the module bytes.
+ * <p>
+ * Positions are absolute offsets into the underlying buffer, which is shared and never modified:
+ * all reads are absolute and do not depend on the buffer's byte order, so several readers can work
+ * concurrently on views of the same buffer.
+ * Views are created with {@link #view(int, int)}; no bytes are copied.
+ */
+class DiemReader {
+    private final ByteBuffer buf;
+    private final int end;
+    private int pos;
+
+    /**
+     * Create a reader over the whole buffer, positioned at the provided offset.
+     */
+    public DiemReader(ByteBuffer buf, int pos) {
+        this(buf, pos, buf.limit());
+    }
+
+    /**
+     * Create a reader over the [pos, end) window of the buffer.
+     */
+    public DiemReader(ByteBuffer buf, int pos, int end) {
+        if(pos < 0 || end > buf.limit() || pos > end) {
+            throw new IndexOutOfBoundsException(String.format("Illegal window [%d,%d)", pos, end));
+        }
+        this.buf = buf;
+        this.pos = pos;
+        this.end = end;
+    }
+
+    /**
+     * Create a reader over a window of the same buffer. The window is not bounded by the current
+     * reader's window.
+     */
+    public DiemReader view(int start, int end) {
+        return new DiemReader(buf, start, end);
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public void position(int pos) {
+        if(pos < 0 || pos > end) {
+            throw new IndexOutOfBoundsException("Illegal position: " + pos);
+        }
+        this.pos = pos;
+    }
+
+    public int maxPosition() {
+        return end;
+    }
+
+    public int available() {
+        return end - pos;
+    }
+
+    public void skip(int cnt) {
+        position(pos + cnt);
+    }
+
+    private void check(int cnt) {
+        if(cnt < 0 || cnt > end - pos) {
+            throw new IndexOutOfBoundsException(String.format("Reading %d bytes at %d, limit is %d", cnt, pos, end));
+        }
+    }
+
+    public int u8() {
+        check(1);
+        return buf.get(pos++) & 0xFF;
+    }
+
+    public int u16() {
+        check(2);
+        int v = (buf.get(pos) & 0xFF) | (buf.get(pos + 1) & 0xFF) << 8;
+        pos += 2;
+        return v;
+    }
+
+    /** unsigned 32-bit value that must fit in a positive int */
+    public int u31() {
+        check(4);
+        int v = (buf.get(pos) & 0xFF) | (buf.get(pos + 1) & 0xFF) << 8 | (buf.get(pos + 2) & 0xFF) << 16
+                | (buf.get(pos + 3) & 0xFF) << 24;
+        if(v < 0) {
+            throw new RuntimeException("Value does not fit in 31 bits");
+        }
+        pos += 4;
+        return v;
+    }
+
+    public long i64() {
+        return le(8);
+    }
+
+    /** little-endian value of 1 to 8 bytes (unsigned, unless 8 bytes are read) */
+    public long le(int cnt) {
+        check(cnt);
+        long v = 0;
+        for(int i = cnt - 1; i >= 0; i--) {
+            v = v << 8 | (buf.get(pos + i) & 0xFF);
+        }
+        pos += cnt;
+        return v;
+    }
+
+    /** ULEB128-encoded value, at most 16-bit */
+    public int varu16() {
+        int v = varu32();
+        if(v < 0 || v > 0xFFFF) {
+            throw new RuntimeException("Value does not fit in 16 bits");
+        }
+        return v;
+    }
+
+    /** ULEB128-encoded value, at most 32-bit (may be negative if the value does not fit in 31 bits) */
+    public int vari32() {
+        return varu32();
+    }
+
+    private int varu32() {
+        // a 32-bit value is encoded on at most 5 bytes: bound the loop once instead of checking each byte
+        int limit = Math.min(end, pos + 5);
+        int p = pos;
+        int v = 0;
+        for(int shift = 0; p < limit; shift += 7) {
+            int b = buf.get(p++);
+            v |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                pos = p;
+                return v;
+            }
+        }
+        if(limit == end && p - pos < 5) {
+            throw new IndexOutOfBoundsException(String.format("Truncated ULEB128 value at %d, limit is %d", pos, end));
+        }
+        throw new RuntimeException("Illegal ULEB128 value");
+    }
+
+    /** read bytes, the returned array is a copy */
+    public byte[] get(int cnt) {
+        check(cnt);
+        byte[] r = getBytes(pos, cnt);
+        pos += cnt;
+        return r;
+    }
+
+    /** retrieve bytes at an absolute offset, without moving the cursor; the returned array is a copy */
+    public byte[] getBytes(int offset, int cnt) {
+        if(offset < 0 || cnt < 0 || offset + cnt > buf.limit()) {
+            throw new IndexOutOfBoundsException(String.format("Reading %d bytes at %d", cnt, offset));
+        }
+        byte[] r = new byte[cnt];
+        ByteBuffer b = buf.duplicate();
+        b.position(offset);
+        b.get(r);
+        return r;
+    }
+}
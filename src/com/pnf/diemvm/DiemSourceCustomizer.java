@@ -26,7 +26,6 @@ import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.COutputSink;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICClass;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICCustomStatement;
 import com.pnfsoftware.jeb.core.units.code.asm.decompiler.ast.ICMethod;
-import com.pnfsoftware.jeb.core.units.code.asm.items.INativeMethodItem;
 
 /**
  * Customize decompiled source code rendering to make it look more {@code Move} friendly.
@@ -71,9 +70,7 @@ public class DiemSourceCustomizer extends SourceCustomizerAdapter {
 
     @Override
     public boolean generateMethodDeclarationLine(ICMethod elt, COutputSink out) {
-        int index = elt.getIndex();
-        INativeMethodItem routine = code.getMethodByIndex(index);
-        FunctionDef f = unit.getFunctionByAddress(routine.getData().getMemoryAddress());
+        FunctionDef f = unit.getFunctionByMethodIndex(code, elt.getIndex());
         if(f.getFlags() != 0) {
             out.appendKeyword(Diem.formatFunctionFlags(f.getFlags()));
             out.space();
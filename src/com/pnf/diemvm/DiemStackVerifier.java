@@ -0,0 +1,444 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+
+import com.pnf.diemvm.Diem.OpcodeDef;
+
+/**
+ * Dataflow verification of the operand stack of a routine.
+ * <p>
+ * The routine is split into basic blocks at branch targets and after branches and returns. Stack
+ * states are propagated along the control flow; a block is visited once, when its entry state is
+ * first reached. Stack heights and types must agree at joins: the type of a stack slot is the
+ * signature token that the converter assigns to the value pushed by the producing instruction, and
+ * the converter holds a slot crossing blocks in a single variable per token.
+ * <p>
+ * Bytecode accepted by the Diem verifier has balanced blocks: the stack is empty on entry of every
+ * block. In that case, the heights are checked on the block edges using the stack deltas computed
+ * by the parser, and no instruction is simulated.
+ */
+class DiemStackVerifier {
+
+    /**
+     * Entry stack states of the basic blocks of a routine. Immutable.
+     */
+    static class BlockStacks {
+        /** instruction index of the first instruction of each block, sorted */
+        private final int[] starts;
+        /** entry height of each block, -1 if the block is unreachable */
+        private final int[] heights;
+        /** index in types of the bottom slot of each block's entry stack */
+        private final int[] typeStarts;
+        private final SignatureToken[] types;
+
+        private BlockStacks(int[] starts, SignatureToken[][] entries) {
+            this.starts = starts;
+            heights = new int[starts.length];
+            typeStarts = new int[starts.length];
+            int cnt = 0;
+            for(int b = 0; b < starts.length; b++) {
+                heights[b] = entries[b] == null ? -1: entries[b].length;
+                typeStarts[b] = cnt;
+                cnt += Math.max(0, heights[b]);
+            }
+            types = new SignatureToken[cnt];
+            for(int b = 0; b < starts.length; b++) {
+                if(entries[b] != null) {
+                    System.arraycopy(entries[b], 0, types, typeStarts[b], heights[b]);
+                }
+            }
+        }
+
+        int getBlockCount() {
+            return starts.length;
+        }
+
+        int getBlockStart(int block) {
+            return starts[block];
+        }
+
+        /**
+         * @param index instruction index
+         * @return the block starting at the instruction, -1 if the instruction does not start a block
+         */
+        int getBlockAt(int index) {
+            int b = Arrays.binarySearch(starts, index);
+            return b >= 0 ? b: -1;
+        }
+
+        /**
+         * @param index instruction index
+         * @return the block containing the instruction, -1 if the index precedes the first block
+         */
+        int getEnclosingBlock(int index) {
+            if(index < 0 || starts.length == 0 || index < starts[0]) {
+                return -1;
+            }
+            int b = Arrays.binarySearch(starts, index);
+            return b >= 0 ? b: -b - 2;
+        }
+
+        boolean isReachable(int block) {
+            return heights[block] >= 0;
+        }
+
+        /** @return the stack height on block entry, -1 if the block is unreachable */
+        int getEntryHeight(int block) {
+            return heights[block];
+        }
+
+        /**
+         * @param slot stack slot, 0 is the bottom of the stack
+         * @return the type of the slot on block entry
+         */
+        SignatureToken getEntryType(int block, int slot) {
+            if(slot < 0 || slot >= heights[block]) {
+                throw new IndexOutOfBoundsException("Illegal slot: " + slot);
+            }
+            return types[typeStarts[block] + slot];
+        }
+    }
+
+    private static final SignatureToken[] EMPTY = new SignatureToken[0];
+
+    private final DiemUnit unit;
+    private final DiemInstructionTable table;
+    private final List<SignatureToken> locals;
+    private final int outsize;
+    /** stack state being simulated */
+    private SignatureToken[] stack = new SignatureToken[16];
+    private int height;
+
+    private DiemStackVerifier(DiemUnit unit, CodeUnit code, DiemInstructionTable table) {
+        this.unit = unit;
+        this.table = table;
+        locals = code.getLocals(unit).getTokens();
+        outsize = unit.getFunctionSignature(code.getFunctionHandleIndex()).getReturnTokens().size();
+    }
+
+    /**
+     * Verify the operand stack of a decoded routine.
+     * 
+     * @return the entry stack states of the routine's blocks
+     * @throws RuntimeException if the stack underflows or stack heights differ at a join
+     */
+    static BlockStacks verify(DiemUnit unit, CodeUnit code, DiemInstructionTable table) {
+        return new DiemStackVerifier(unit, code, table).run();
+    }
+
+    private BlockStacks run() {
+        int n = table.size();
+        BitSet leaders = new BitSet(n);
+        leaders.set(0);
+        for(int i = 0; i < n; i++) {
+            switch(table.getOpcode(i)) {
+            case BRANCH:
+            case BR_TRUE:
+            case BR_FALSE:
+                leaders.set((int)table.getOperand(i));
+                if(i + 1 < n) {
+                    leaders.set(i + 1);
+                }
+                break;
+            case RET:
+                if(i + 1 < n) {
+                    leaders.set(i + 1);
+                }
+                break;
+            default:
+                ;
+            }
+        }
+        int[] starts = leaders.stream().toArray();
+        SignatureToken[][] entries = new SignatureToken[starts.length][];
+        if(n == 0 || verifyBalanced(starts, entries)) {
+            return new BlockStacks(starts, entries);
+        }
+        Arrays.fill(entries, null);
+
+        entries[0] = EMPTY;
+        Deque<Integer> worklist = new ArrayDeque<>();
+        worklist.add(0);
+        while(!worklist.isEmpty()) {
+            int b = worklist.poll();
+            enter(entries[b].length);
+            System.arraycopy(entries[b], 0, stack, 0, height);
+
+            int end = b + 1 < starts.length ? starts[b + 1]: n;
+            simulate(starts[b], end);
+
+            int last = end - 1;
+            switch(table.getOpcode(last)) {
+            case RET:
+                break;
+            case BRANCH:
+                merge(starts, entries, worklist, (int)table.getOperand(last), stack, height);
+                break;
+            case BR_TRUE:
+            case BR_FALSE:
+                merge(starts, entries, worklist, (int)table.getOperand(last), stack, height);
+                if(end < n) {
+                    merge(starts, entries, worklist, end, stack, height);
+                }
+                break;
+            default:
+                if(end < n) {
+                    merge(starts, entries, worklist, end, stack, height);
+                }
+            }
+        }
+        return new BlockStacks(starts, entries);
+    }
+
+    /**
+     * Determine the stack state before an instruction, by simulating its block from the entry state
+     * determined by the verification.
+     * 
+     * @param stacks entry stack states of the routine's blocks, see {@link #verify}
+     * @param index instruction index
+     * @return the types of the stack slots, bottom first; null if the instruction is unreachable
+     */
+    static SignatureToken[] getStackAt(DiemUnit unit, CodeUnit code, DiemInstructionTable table, BlockStacks stacks,
+            int index) {
+        int b = stacks.getEnclosingBlock(index);
+        if(b < 0 || !stacks.isReachable(b)) {
+            return null;
+        }
+        DiemStackVerifier v = new DiemStackVerifier(unit, code, table);
+        v.enter(stacks.getEntryHeight(b));
+        for(int slot = 0; slot < v.height; slot++) {
+            v.stack[slot] = stacks.getEntryType(b, slot);
+        }
+        v.simulate(stacks.getBlockStart(b), index);
+        return Arrays.copyOf(v.stack, v.height);
+    }
+
+    /**
+     * Reset the stack state to a given height, whose slots are to be set by the caller.
+     */
+    private void enter(int height) {
+        if(height > stack.length) {
+            stack = new SignatureToken[height * 2];
+        }
+        this.height = height;
+    }
+
+    /**
+     * Simulate a sequence of instructions on the stack state.
+     * 
+     * @param from first instruction
+     * @param to instruction following the last one, exclusive
+     */
+    private void simulate(int from, int to) {
+        DiemBytecodeParser parser = unit.getBytecodeParser();
+        for(int i = from; i < to; i++) {
+            OpcodeDef opcode = table.getOpcode(i);
+            int popcnt = parser.getPopCount(table, i, outsize);
+            int pushcnt = parser.getPushCount(table, i);
+            if(popcnt > height) {
+                throw new RuntimeException(String.format("Stack underflow at instruction %d", i));
+            }
+            SignatureToken top = height > 0 ? stack[height - 1]: null;
+            height -= popcnt;
+            if(height + pushcnt > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, height + pushcnt));
+            }
+            for(int k = 0; k < pushcnt; k++) {
+                stack[height++] = getPushedToken(i, opcode, top, k);
+            }
+        }
+    }
+
+    /**
+     * Verify the stack heights using the parser's linear stack deltas, which are exact if every
+     * reachable block is entered with an empty stack.
+     * 
+     * @return true if the stack is empty on entry of all reachable blocks, whose entries are then
+     * set; false if the stack states must be determined by simulating the instructions
+     */
+    private boolean verifyBalanced(int[] starts, SignatureToken[][] entries) {
+        int n = table.size();
+        int[] queue = new int[starts.length];
+        int qlen = 0;
+        entries[0] = EMPTY;
+        queue[qlen++] = 0;
+        for(int q = 0; q < qlen; q++) {
+            int b = queue[q];
+            if(table.getPreExecStackDelta(starts[b]) != 0) {
+                return false;
+            }
+            int end = b + 1 < starts.length ? starts[b + 1]: n;
+            int last = end - 1;
+            int height = table.getPostExecStackDelta(last);
+            int target = -1;
+            boolean fallthrough = end < n;
+            switch(table.getOpcode(last)) {
+            case RET:
+                fallthrough = false;
+                break;
+            case BRANCH:
+                fallthrough = false;
+                target = (int)table.getOperand(last);
+                break;
+            case BR_TRUE:
+            case BR_FALSE:
+                target = (int)table.getOperand(last);
+                break;
+            default:
+                ;
+            }
+            if(target < 0 && !fallthrough) {
+                continue;
+            }
+            if(height != 0) {
+                // the exit stack is not empty: its types must be determined
+                return false;
+            }
+            if(target >= 0) {
+                qlen = enqueue(starts, entries, queue, qlen, target);
+            }
+            if(fallthrough) {
+                qlen = enqueue(starts, entries, queue, qlen, end);
+            }
+        }
+        return true;
+    }
+
+    private static int enqueue(int[] starts, SignatureToken[][] entries, int[] queue, int qlen, int target) {
+        int b = Arrays.binarySearch(starts, target);
+        if(entries[b] == null) {
+            entries[b] = EMPTY;
+            queue[qlen++] = b;
+        }
+        return qlen;
+    }
+
+    private void merge(int[] starts, SignatureToken[][] entries, Deque<Integer> worklist, int target,
+            SignatureToken[] stack, int height) {
+        int b = Arrays.binarySearch(starts, target);
+        SignatureToken[] entry = entries[b];
+        if(entry == null) {
+            entries[b] = Arrays.copyOf(stack, height);
+            worklist.add(b);
+        }
+        else if(entry.length != height) {
+            throw new RuntimeException(String.format("Inconsistent stack height at instruction %d: %d, expected %d",
+                    target, height, entry.length));
+        }
+        else {
+            for(int j = 0; j < height; j++) {
+                if(!Objects.equals(entry[j], stack[j])) {
+                    throw new RuntimeException(
+                            String.format("Inconsistent stack type at instruction %d, slot %d", target, j));
+                }
+            }
+        }
+    }
+
+    /**
+     * Determine the type of a reference frozen by FREEZE_REF.
+     * 
+     * @param ref type of the reference, null if unknown
+     * @return the immutable reference to the same type, or the generic immutable reference
+     */
+    static SignatureToken getFrozenToken(DiemUnit unit, SignatureToken ref) {
+        if(ref == null || ref.getReference() == null) {
+            return SignatureToken.stAnyImmutableRef;
+        }
+        return unit.getReferenceToken(ref.getReference(), false);
+    }
+
+    /**
+     * Determine the type of a value pushed by an instruction, as done by {@link DiemConverter}.
+     * 
+     * @param top type of the topmost value before the instruction is executed
+     * @param k index of the pushed value, for instructions that push several values
+     * @return the type, null if unknown
+     */
+    private SignatureToken getPushedToken(int i, OpcodeDef opcode, SignatureToken top, int k) {
+        int idx = (int)table.getOperand(i);
+        switch(opcode) {
+        case LD_CONST:
+        case NOT:
+        case ADD:
+        case SUB:
+        case MUL:
+        case MOD:
+        case DIV:
+        case BIT_OR:
+        case BIT_AND:
+        case XOR:
+            // logical operations and comparisons too: the converter produces 64-bit integers
+        case OR:
+        case AND:
+        case EQ:
+        case NEQ:
+        case LT:
+        case GT:
+        case LE:
+        case GE:
+        case GET_TXN_SEQUENCE_NUMBER:
+        case GET_GAS_REMAINING:
+        case GET_TXN_GAS_UNIT_PRICE:
+        case GET_TXN_MAX_GAS_UNITS:
+            return SignatureToken.stUint64;
+        case LD_TRUE:
+        case LD_FALSE:
+        case EXISTS:
+            return SignatureToken.stBool;
+        case LD_ADDR:
+        case GET_TXN_SENDER:
+            return SignatureToken.stAddress;
+        case LD_STR:
+            return SignatureToken.stString;
+        case LD_BYTEARRAY:
+        case GET_TXN_PUBLIC_KEY:
+            return SignatureToken.stBytearray;
+        case COPY_LOC:
+        case MOVE_LOC:
+            return locals.get(idx);
+        case LD_REF_LOC:
+            return unit.getReferenceToken(locals.get(idx), false);
+        case LD_REF_FIELD:
+            return unit.getReferenceToken(unit.fieldDefs.get(idx).getSignature(unit).getToken(), true);
+        case BORROW_REF:
+        case PACK:
+            return unit.getReferenceToken(unit.getStructToken(unit.structDefs.get(idx).getHandleIndex()), true);
+        case MOVE_FROM:
+            return unit.getStructToken(unit.structDefs.get(idx).getHandleIndex());
+        case UNPACK:
+            return unit.structDefs.get(idx).getFields(unit).get(k).getSignature(unit).getToken();
+        case CALL:
+            return unit.getFunctionSignature(idx).getReturnTokens().get(k);
+        case FREEZE_REF:
+            return getFrozenToken(unit, top);
+        case READ_REF:
+            return top != null && top.getReference() != null ? top.getReference(): SignatureToken.stAnyMutableRef;
+        default:
+            return null;
+        }
+    }
+}
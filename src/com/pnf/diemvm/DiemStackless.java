@@ -0,0 +1,406 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.pnf.diemvm.Diem.OpcodeDef;
+
+/**
+ * Register-form ("stackless") view of a routine, computed before its conversion to IR.
+ * <p>
+ * Every stack value is resolved to the instruction that produces it and the instruction that
+ * consumes it. A value computed without side effects (constants, copies of locals, and operations
+ * on such values) is folded into its consumer: the converter builds it as an operand expression of
+ * the consumer, instead of assigning it to a stack variable that is read right after. Other values
+ * are held by stack variables, see {@link DiemConverter}.
+ * <p>
+ * A folded value reading locals is evaluated later than in the bytecode: it is folded only if no
+ * instruction in between may write a local. Likewise, a value that may abort (u64 arithmetic whose
+ * result is not a known constant) is folded only if no instruction in between has side effects or
+ * may abort: the abort is not moved past them. Values crossing block boundaries are never folded,
+ * and nothing is folded in a routine whose stack could not be verified.
+ * <p>
+ * A moved local is invalidated only if it may be read afterwards, see {@link DiemLocalLiveness};
+ * other moves are handled as copies.
+ * <p>
+ * Constants are propagated along the stack within blocks: operations on constant values are
+ * evaluated, and conditional branches on a constant condition are resolved, so that the converter
+ * emits neither the computation nor the dead edge. The branch is converted as an unconditional
+ * jump: blocks reachable only through dead edges are left unreachable in the IR control flow graph,
+ * and removed with it. Arithmetic is evaluated only if the result does not depend on overflow and
+ * division by zero, which abort in the Diem VM.
+ */
+class DiemStackless {
+    /** for each instruction, index of the instruction its value is folded into, -1 if none */
+    private final int[] consumers;
+    /** MOVE_LOC instructions whose local must be invalidated */
+    private final BitSet liveMoves;
+    /** instructions whose value, or whose branch condition, is a known constant */
+    private final BitSet constants;
+    private final long[] values;
+
+    private DiemStackless(int insncnt, BitSet liveMoves) {
+        this.liveMoves = liveMoves;
+        constants = new BitSet(insncnt);
+        values = new long[insncnt];
+        consumers = new int[insncnt];
+        Arrays.fill(consumers, -1);
+    }
+
+    /**
+     * Lower a routine to register form.
+     */
+    static DiemStackless lower(DiemUnit unit, CodeUnit code) {
+        return lower(unit, code, code.getInstructionTable(), code.getBlockStacks());
+    }
+
+    /**
+     * Lower a routine to register form.
+     * 
+     * @param table instructions of the routine
+     * @param stacks entry stacks of the routine's blocks, null if the stack could not be verified
+     */
+    static DiemStackless lower(DiemUnit unit, CodeUnit code, DiemInstructionTable table,
+            DiemStackVerifier.BlockStacks stacks) {
+        DiemBytecodeParser parser = unit.getBytecodeParser();
+        int outsize = unit.getFunctionSignature(code.getFunctionHandleIndex()).getReturnTokens().size();
+        int n = table.size();
+        DiemStackless r = new DiemStackless(n, DiemLocalLiveness.getLiveMoves(table, stacks));
+        if(stacks == null) {
+            return r;
+        }
+
+        // writers[i] = number of instructions that may write a local in [0, i)
+        // effects[i] = number of instructions that have side effects or may abort in [0, i)
+        int[] writers = new int[n + 1];
+        int[] effects = new int[n + 1];
+        for(int i = 0; i < n; i++) {
+            OpcodeDef opcode = table.getOpcode(i);
+            boolean writes = opcode == OpcodeDef.MOVE_LOC ? r.liveMoves.get(i): mayWriteLocals(opcode);
+            writers[i + 1] = writers[i] + (writes ? 1: 0);
+            effects[i + 1] = effects[i] + (writes || mayAbort(opcode) ? 1: 0);
+        }
+
+        // for the producer of a foldable value: first instruction of its computation, whether it reads
+        // locals, and whether it may abort
+        boolean[] foldable = new boolean[n];
+        int[] first = new int[n];
+        boolean[] readsLocals = new boolean[n];
+        boolean[] aborts = new boolean[n];
+
+        // producer of each stack value, -1 if unknown
+        int[] stack = new int[Math.max(16, code.getMaxStackSize())];
+        for(int b = 0; b < stacks.getBlockCount(); b++) {
+            if(!stacks.isReachable(b)) {
+                continue;
+            }
+            int height = stacks.getEntryHeight(b);
+            if(height > stack.length) {
+                stack = new int[height * 2];
+            }
+            Arrays.fill(stack, 0, height, -1);
+
+            int end = b + 1 < stacks.getBlockCount() ? stacks.getBlockStart(b + 1): n;
+            for(int i = stacks.getBlockStart(b); i < end; i++) {
+                OpcodeDef opcode = table.getOpcode(i);
+                int popcnt = parser.getPopCount(table, i, outsize);
+                int pushcnt = parser.getPushCount(table, i);
+                // producers of the two topmost operands
+                int opnd1 = popcnt >= 1 ? stack[height - 1]: -1;
+                int opnd0 = popcnt >= 2 ? stack[height - 2]: -1;
+                r.evaluate(table, i, opcode, opnd0, opnd1);
+
+                boolean accepts = acceptsExpressions(opcode);
+                boolean allFolded = true;
+                int start = i;
+                boolean reads = opcode == OpcodeDef.COPY_LOC || opcode == OpcodeDef.MOVE_LOC;
+                boolean abort = isAbortingOperation(opcode) && !r.constants.get(i);
+                for(int k = 0; k < popcnt; k++) {
+                    int p = stack[--height];
+                    if(p >= 0 && accepts && foldable[p] && (!readsLocals[p] || writers[i] == writers[first[p]])
+                            && (!aborts[p] || effects[i] == effects[first[p]])) {
+                        r.consumers[p] = i;
+                        start = Math.min(start, first[p]);
+                        reads |= readsLocals[p];
+                        abort |= aborts[p];
+                    }
+                    else {
+                        allFolded = false;
+                    }
+                }
+
+                if(height + pushcnt > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, height + pushcnt));
+                }
+                if(pushcnt == 1) {
+                    // operations are folded only if their operands are: stack variables may be reused meanwhile
+                    boolean pure = opcode == OpcodeDef.MOVE_LOC ? !r.liveMoves.get(i): isPure(opcode);
+                    foldable[i] = pure && allFolded;
+                    first[i] = start;
+                    readsLocals[i] = reads;
+                    aborts[i] = abort;
+                    stack[height++] = i;
+                }
+                else {
+                    for(int k = 0; k < pushcnt; k++) {
+                        stack[height++] = -1;
+                    }
+                }
+            }
+        }
+        return r;
+    }
+
+    /** true if the value of an instruction is folded into its consumer */
+    boolean isFolded(int index) {
+        return consumers[index] >= 0;
+    }
+
+    /** @return the instruction the value of an instruction is folded into, -1 if none */
+    int getConsumer(int index) {
+        return consumers[index];
+    }
+
+    /**
+     * @return true if the value pushed by the instruction is a known constant, or, for a conditional
+     * branch, if its condition is
+     */
+    boolean isConstant(int index) {
+        return constants.get(index);
+    }
+
+    /** @return the constant value pushed by the instruction, or the constant branch condition */
+    long getConstant(int index) {
+        return values[index];
+    }
+
+    private boolean isConstantValue(int producer) {
+        return producer >= 0 && constants.get(producer);
+    }
+
+    private void evaluate(DiemInstructionTable table, int i, OpcodeDef opcode, int opnd0, int opnd1) {
+        switch(opcode) {
+        case LD_CONST:
+            setConstant(i, table.getOperand(i));
+            break;
+        case LD_TRUE:
+            setConstant(i, 1);
+            break;
+        case LD_FALSE:
+            setConstant(i, 0);
+            break;
+        case NOT:
+            if(isConstantValue(opnd1)) {
+                setConstant(i, values[opnd1] == 0 ? 1: 0);
+            }
+            break;
+        case BR_TRUE:
+        case BR_FALSE:
+            if(isConstantValue(opnd1)) {
+                setConstant(i, values[opnd1]);
+            }
+            break;
+        default:
+            if(isBinaryOperation(opcode) && isConstantValue(opnd0) && isConstantValue(opnd1)) {
+                evaluateBinaryOperation(i, opcode, values[opnd0], values[opnd1]);
+            }
+        }
+    }
+
+    private void setConstant(int i, long v) {
+        constants.set(i);
+        values[i] = v;
+    }
+
+    /** evaluate an operation on u64 values, unless it aborts */
+    private void evaluateBinaryOperation(int i, OpcodeDef opcode, long a, long b) {
+        switch(opcode) {
+        case ADD:
+            if(Long.compareUnsigned(a + b, a) >= 0) {
+                setConstant(i, a + b);
+            }
+            break;
+        case SUB:
+            if(Long.compareUnsigned(a, b) >= 0) {
+                setConstant(i, a - b);
+            }
+            break;
+        case MUL:
+            if(b == 0 || Long.compareUnsigned(a, Long.divideUnsigned(-1L, b)) <= 0) {
+                setConstant(i, a * b);
+            }
+            break;
+        case MOD:
+            if(b != 0) {
+                setConstant(i, Long.remainderUnsigned(a, b));
+            }
+            break;
+        case DIV:
+            if(b != 0) {
+                setConstant(i, Long.divideUnsigned(a, b));
+            }
+            break;
+        case BIT_OR:
+            setConstant(i, a | b);
+            break;
+        case BIT_AND:
+            setConstant(i, a & b);
+            break;
+        case XOR:
+            setConstant(i, a ^ b);
+            break;
+        case OR:
+            setConstant(i, a != 0 || b != 0 ? 1: 0);
+            break;
+        case AND:
+            setConstant(i, a != 0 && b != 0 ? 1: 0);
+            break;
+        case EQ:
+            setConstant(i, a == b ? 1: 0);
+            break;
+        case NEQ:
+            setConstant(i, a != b ? 1: 0);
+            break;
+        case LT:
+            setConstant(i, Long.compareUnsigned(a, b) < 0 ? 1: 0);
+            break;
+        case GT:
+            setConstant(i, Long.compareUnsigned(a, b) > 0 ? 1: 0);
+            break;
+        case LE:
+            setConstant(i, Long.compareUnsigned(a, b) <= 0 ? 1: 0);
+            break;
+        case GE:
+            setConstant(i, Long.compareUnsigned(a, b) >= 0 ? 1: 0);
+            break;
+        default:
+            ;
+        }
+    }
+
+    /** true if the instruction is a MOVE_LOC whose local must be invalidated */
+    boolean isInvalidatingMove(int index) {
+        return liveMoves.get(index);
+    }
+
+    /** instructions producing a single value without side effects */
+    private static boolean isPure(OpcodeDef opcode) {
+        switch(opcode) {
+        case LD_CONST:
+        case LD_TRUE:
+        case LD_FALSE:
+        case LD_ADDR:
+        case LD_STR:
+        case LD_BYTEARRAY:
+        case COPY_LOC:
+        case NOT:
+            return true;
+        default:
+            return isBinaryOperation(opcode);
+        }
+    }
+
+    /** instructions whose operands are converted as IR expressions, rather than variables */
+    private static boolean acceptsExpressions(OpcodeDef opcode) {
+        switch(opcode) {
+        case ST_LOC:
+        case BR_TRUE:
+        case BR_FALSE:
+        case NOT:
+        case RET:
+        case POP:
+        case CALL:
+        case ASSERT:
+        case EMIT_EVENT:
+        case CREATE_ACCOUNT:
+        case RELEASE_REF:
+            return true;
+        default:
+            return isBinaryOperation(opcode);
+        }
+    }
+
+    /** instructions that may write a local, directly or through a reference (MOVE_LOC excepted) */
+    private static boolean mayWriteLocals(OpcodeDef opcode) {
+        switch(opcode) {
+        case ST_LOC:
+        case CALL:
+        case WRITE_REF:
+        case MOVE_TO:
+        case MOVE_FROM:
+        case EMIT_EVENT:
+        case CREATE_ACCOUNT:
+        case RELEASE_REF:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /** instructions that may abort, other than u64 arithmetic and those that may write a local */
+    private static boolean mayAbort(OpcodeDef opcode) {
+        switch(opcode) {
+        case ASSERT:
+        case BORROW_REF:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /** u64 arithmetic, which aborts on overflow and division by zero */
+    private static boolean isAbortingOperation(OpcodeDef opcode) {
+        switch(opcode) {
+        case ADD:
+        case SUB:
+        case MUL:
+        case MOD:
+        case DIV:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isBinaryOperation(OpcodeDef opcode) {
+        switch(opcode) {
+        case ADD:
+        case SUB:
+        case MUL:
+        case MOD:
+        case DIV:
+        case BIT_OR:
+        case BIT_AND:
+        case XOR:
+        case OR:
+        case AND:
+        case EQ:
+        case NEQ:
+        case LT:
+        case GT:
+        case LE:
+        case GE:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
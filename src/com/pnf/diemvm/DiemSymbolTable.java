@@ -0,0 +1,135 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.util.Arrays;
+
+import com.pnfsoftware.jeb.core.units.code.asm.decompiler.INativeDecompilerContext;
+import com.pnfsoftware.jeb.core.units.code.asm.items.INativeFieldItem;
+import com.pnfsoftware.jeb.core.units.code.asm.items.INativeMethodDataItem;
+import com.pnfsoftware.jeb.core.units.code.asm.items.INativeMethodItem;
+import com.pnfsoftware.jeb.core.units.code.asm.type.IPrototypeItem;
+import com.pnfsoftware.jeb.core.units.code.asm.type.ITypeManager;
+
+/**
+ * Native items referenced by the bytecode of a unit, for use by the {@link DiemConverter}: routines
+ * of the function handles, prototypes of the function signatures, and fields of the string and
+ * bytearray pool entries.
+ * <p>
+ * The table is sized once per converter; entries are resolved on first use, further accesses are
+ * array reads. Routines are checked against their function handle on each access, and resolved
+ * again if they no longer match. Prototypes are created once per function signature, and re-created
+ * if the type manager changes.
+ */
+class DiemSymbolTable {
+    private final DiemConverter converter;
+    private final INativeDecompilerContext nctx;
+    private final DiemUnit unit;
+
+    /** indexed by function handle */
+    private final INativeMethodItem[] routines;
+    /** indexed by function signature */
+    private final IPrototypeItem[] prototypes;
+    private ITypeManager prototypesOwner;
+    /** indexed by string pool entry */
+    private final INativeFieldItem[] strings;
+    /** indexed by bytearray pool entry */
+    private final INativeFieldItem[] bytearrays;
+
+    DiemSymbolTable(DiemConverter converter, INativeDecompilerContext nctx, DiemUnit unit) {
+        this.converter = converter;
+        this.nctx = nctx;
+        this.unit = unit;
+        routines = new INativeMethodItem[unit.functionHandles.size()];
+        prototypes = new IPrototypeItem[unit.functionSignatures.size()];
+        strings = new INativeFieldItem[unit.stringPool.size()];
+        bytearrays = new INativeFieldItem[unit.bytearrayPool.size()];
+    }
+
+    /**
+     * Retrieve the routine of a function handle.
+     * 
+     * @return the routine, null if it cannot be resolved
+     */
+    INativeMethodItem getRoutine(int fh_index) {
+        FunctionHandle f = unit.functionHandles.get(fh_index);
+        INativeMethodItem r = routines[fh_index];
+        if(r == null || !isCurrentRoutine(r, f)) {
+            r = nctx.getRoutine(f.mappedAddress);
+            if(r == null) {
+                r = nctx.getRoutineByName(f.getName(unit));
+            }
+            routines[fh_index] = r;
+        }
+        return r;
+    }
+
+    /**
+     * Check that a cached routine still matches its function handle: defined routines by address
+     * (they may be undefined or moved by the code analysis), the others by original name.
+     */
+    private boolean isCurrentRoutine(INativeMethodItem r, FunctionHandle f) {
+        INativeMethodDataItem data = r.getData();
+        if(data != null) {
+            return data.getMemoryAddress() == f.mappedAddress;
+        }
+        return f.getName(unit).equals(r.getName(false));
+    }
+
+    /**
+     * Retrieve the native prototype of a function signature.
+     */
+    IPrototypeItem getPrototype(FunctionSignature fsig) {
+        ITypeManager typeman = converter.pbcu.getTypeManager();
+        if(prototypesOwner != typeman) {
+            Arrays.fill(prototypes, null);
+            prototypesOwner = typeman;
+        }
+        IPrototypeItem r = prototypes[fsig.getIndex()];
+        if(r == null) {
+            r = converter.convertDiemPrototype(fsig);
+            prototypes[fsig.getIndex()] = r;
+        }
+        return r;
+    }
+
+    /**
+     * Retrieve the field item of a string pool entry.
+     */
+    INativeFieldItem getStringField(int index) {
+        INativeFieldItem r = strings[index];
+        if(r == null) {
+            r = nctx.getField(unit.stringPool.get(index).mappedAddress);
+            strings[index] = r;
+        }
+        return r;
+    }
+
+    /**
+     * Retrieve the field item of a bytearray pool entry.
+     */
+    INativeFieldItem getBytearrayField(int index) {
+        INativeFieldItem r = bytearrays[index];
+        if(r == null) {
+            r = nctx.getField(unit.bytearrayPool.get(index).mappedAddress);
+            bytearrays[index] = r;
+        }
+        return r;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.pnfsoftware.jeb.util.format.TextBuilder;
+
+/**
+ * Streaming renderer of the Diem tables of a unit.
+ * <p>
+ * The tables are the pools of the unit, in their historical dump order, followed by the main
+ * function of a script. Output is written to an {@link Appendable} one entry at a time, so that a
+ * single table, or a range of entries of a table, can be rendered without formatting the others.
+ * Concatenating all entries of all tables produces the text of {@link DiemUnit#formatTables()}.
+ */
+class DiemTableFormatter {
+
+    private static class Table {
+        /** null for the unbracketed main function of a script */
+        String name;
+        List<? extends DiemObject> entries;
+
+        Table(String name, List<? extends DiemObject> entries) {
+            this.name = name;
+            this.entries = entries;
+        }
+    }
+
+    private final DiemUnit unit;
+    private final List<Table> tables = new ArrayList<>();
+
+    DiemTableFormatter(DiemUnit unit) {
+        this.unit = unit;
+        add(unit.moduleHandles);
+        add(unit.structHandles);
+        add(unit.functionHandles);
+        add(unit.structDefs);
+        add(unit.fieldDefs);
+        add(unit.typeSignatures);
+        add(unit.functionSignatures);
+        add(unit.localSignatures);
+        add(unit.stringPool);
+        add(unit.bytearrayPool);
+        add(unit.addressPool);
+        add(unit.functionDefs);
+        if(unit.main != null) {
+            tables.add(new Table(null, List.of(unit.main)));
+        }
+    }
+
+    private void add(DiemPool<?> pool) {
+        tables.add(new Table(pool.getName(), pool.getAll()));
+    }
+
+    int getTableCount() {
+        return tables.size();
+    }
+
+    /**
+     * @return the table name, null for the main function of a script
+     */
+    String getTableName(int table) {
+        return tables.get(table).name;
+    }
+
+    int getEntryCount(int table) {
+        return tables.get(table).entries.size();
+    }
+
+    /**
+     * Render all tables.
+     */
+    void format(Appendable out) throws IOException {
+        for(int i = 0; i < tables.size(); i++) {
+            formatTable(out, i);
+        }
+    }
+
+    /**
+     * Render a complete table: header, entries, and footer.
+     */
+    void formatTable(Appendable out, int table) throws IOException {
+        formatHeader(out, table);
+        formatEntries(out, table, 0, getEntryCount(table));
+        formatFooter(out, table);
+    }
+
+    /**
+     * Render the opening line of a table, if it has one.
+     */
+    void formatHeader(Appendable out, int table) throws IOException {
+        Table t = tables.get(table);
+        if(t.name != null) {
+            out.append(t.name).append(": [\n");
+        }
+    }
+
+    /**
+     * Render the closing line of a table, if it has one.
+     */
+    void formatFooter(Appendable out, int table) throws IOException {
+        if(tables.get(table).name != null) {
+            out.append("]\n");
+        }
+    }
+
+    /**
+     * Render the [from, to) range of entries of a table. Each entry ends with a new line.
+     */
+    void formatEntries(Appendable out, int table, int from, int to) throws IOException {
+        Table t = tables.get(table);
+        for(int i = from; i < to; i++) {
+            // entries are small, except for function definitions: a buffer per entry bounds the memory used
+            TextBuilder tb = new TextBuilder();
+            if(t.name != null) {
+                tb.indent();
+                t.entries.get(i).format(unit, tb).append(',').appendLine();
+            }
+            else {
+                t.entries.get(i).format(unit, tb).eol();
+            }
+            out.append(tb.toString());
+        }
+    }
+}
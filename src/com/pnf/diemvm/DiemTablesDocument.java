@@ -0,0 +1,138 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.pnfsoftware.jeb.core.output.text.ITextDocumentPart;
+import com.pnfsoftware.jeb.core.output.text.impl.AbstractTextDocument;
+import com.pnfsoftware.jeb.core.output.text.impl.Anchor;
+import com.pnfsoftware.jeb.core.output.text.impl.Line;
+import com.pnfsoftware.jeb.core.output.text.impl.TextDocumentPart;
+
+/**
+ * Paged text document of the Diem tables of a unit.
+ * <p>
+ * Every table line that is not part of an entry (header, footer) and every table entry has its own
+ * anchor. Parts are rendered on demand by {@link DiemTableFormatter}: only the entries surrounding
+ * the requested anchor are formatted.
+ */
+class DiemTablesDocument extends AbstractTextDocument {
+    private final DiemTableFormatter formatter;
+    /** first anchor of each table; the last element is the anchor count */
+    private final long[] tableStarts;
+
+    DiemTablesDocument(DiemUnit unit) {
+        formatter = new DiemTableFormatter(unit);
+        int n = formatter.getTableCount();
+        tableStarts = new long[n + 1];
+        for(int i = 0; i < n; i++) {
+            int extra = formatter.getTableName(i) != null ? 2: 0;
+            tableStarts[i + 1] = tableStarts[i] + formatter.getEntryCount(i) + extra;
+        }
+    }
+
+    @Override
+    public long getAnchorCount() {
+        return tableStarts[tableStarts.length - 1];
+    }
+
+    @Override
+    public ITextDocumentPart getDocumentPart(long anchorId, int linesAfter, int linesBefore) {
+        long count = getAnchorCount();
+        List<Line> lines = new ArrayList<>();
+        List<Anchor> anchors = new ArrayList<>();
+        if(count == 0) {
+            return new TextDocumentPart(lines, anchors);
+        }
+        anchorId = Math.max(0, Math.min(anchorId, count - 1));
+
+        Deque<List<String>> rendered = new ArrayDeque<>();
+        long first = anchorId;
+        int n = 0;
+        while(first > 0 && n < linesBefore) {
+            List<String> l = render(--first);
+            rendered.addFirst(l);
+            n += l.size();
+        }
+        long last = anchorId;
+        n = 0;
+        do {
+            List<String> l = render(last++);
+            rendered.addLast(l);
+            n += l.size();
+        }
+        while(last < count && n < linesAfter);
+
+        long id = first;
+        for(List<String> l: rendered) {
+            anchors.add(new Anchor(id++, lines.size()));
+            for(String s: l) {
+                lines.add(new Line(s));
+            }
+        }
+        return new TextDocumentPart(lines, anchors);
+    }
+
+    /**
+     * Render the lines of an anchor: a table header, a table entry, or a table footer.
+     */
+    private List<String> render(long anchorId) {
+        int table = 0;
+        while(tableStarts[table + 1] <= anchorId) {
+            table++;
+        }
+        int k = (int)(anchorId - tableStarts[table]);
+        boolean bracketed = formatter.getTableName(table) != null;
+        StringBuilder sb = new StringBuilder();
+        try {
+            if(bracketed && k == 0) {
+                formatter.formatHeader(sb, table);
+            }
+            else if(bracketed && k == formatter.getEntryCount(table) + 1) {
+                formatter.formatFooter(sb, table);
+            }
+            else {
+                int index = bracketed ? k - 1: k;
+                formatter.formatEntries(sb, table, index, index + 1);
+            }
+        }
+        catch(IOException e) {
+            // cannot happen with a StringBuilder
+            throw new RuntimeException(e);
+        }
+
+        List<String> r = new ArrayList<>();
+        int start = 0;
+        for(int i = 0; i < sb.length(); i++) {
+            if(sb.charAt(i) == '\n') {
+                r.add(sb.substring(start, i));
+                start = i + 1;
+            }
+        }
+        if(start < sb.length()) {
+            r.add(sb.substring(start));
+        }
+        return r;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import com.pnf.diemvm.Diem.OpcodeDef;
+import com.pnfsoftware.jeb.util.logging.ILogger;
+
+/**
+ * Bounded trace of the parser and converter events of a unit, enabled with the
+ * {@link DiemIdentifier#propnameTracing} property.
+ * <p>
+ * Events are stored as primitive values in a ring buffer; nothing is formatted until the buffer is
+ * dumped, which is done when a module, a routine, or a block cannot be processed. Call sites must
+ * check {@link #isEnabled()} before recording: a disabled tracer costs a field read.
+ */
+class DiemTracer {
+    static final DiemTracer DISABLED = new DiemTracer(0);
+
+    /** default number of events kept */
+    static final int DEFAULT_CAPACITY = 4096;
+
+    enum Event {
+        /** function definition read: a=fh, b=max stack size, c=locals sig, d=insncnt, x=bytecode offset */
+        LOAD_FUNCTION,
+        /** routine decoding: a=fh, b=in, c=out, d=insncnt, x=bytecode offset */
+        PARSE_FUNCTION,
+        /** instruction decoded: a=index, b=opcode, c=pre-exec stack delta, d=post-exec stack delta, x=offset */
+        PARSE_INSN,
+        /** instruction converted: a=opcode, b=first IR offset, c=IR statement count, x=address */
+        CONVERT_INSN
+    }
+
+    private final boolean enabled;
+    private final int capacity;
+    private Event[] events;
+    private int[] args;
+    private long[] xargs;
+    private long[] threads;
+    /** total number of events recorded */
+    private long count;
+
+    DiemTracer(int capacity) {
+        this.enabled = capacity > 0;
+        this.capacity = capacity;
+        if(enabled) {
+            events = new Event[capacity];
+            args = new int[capacity * 4];
+            xargs = new long[capacity];
+            threads = new long[capacity];
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized void record(Event event, int a, int b, int c, int d, long x) {
+        if(!enabled) {
+            return;
+        }
+        int i = (int)(count++ % capacity);
+        events[i] = event;
+        args[i * 4] = a;
+        args[i * 4 + 1] = b;
+        args[i * 4 + 2] = c;
+        args[i * 4 + 3] = d;
+        xargs[i] = x;
+        threads[i] = Thread.currentThread().getId();
+    }
+
+    /**
+     * Format the recorded events, oldest first.
+     */
+    synchronized String format() {
+        StringBuilder sb = new StringBuilder();
+        long first = Math.max(0, count - capacity);
+        if(first > 0) {
+            sb.append(String.format("(%d older events discarded)\n", first));
+        }
+        for(long k = first; k < count; k++) {
+            int i = (int)(k % capacity);
+            int a = args[i * 4];
+            int b = args[i * 4 + 1];
+            int c = args[i * 4 + 2];
+            int d = args[i * 4 + 3];
+            long x = xargs[i];
+            sb.append(String.format("[T%d] ", threads[i]));
+            switch(events[i]) {
+            case LOAD_FUNCTION:
+                sb.append(String.format("==> Bytecode at 0x%X: fh=%d, mss=%d, sig=%d, insncnt=%d", x, a, b, c, d));
+                break;
+            case PARSE_FUNCTION:
+                sb.append(String.format("=> Function at 0x%X: fh=%d: in=%d, out=%d, insncnt=%d", x, a, b, c, d));
+                break;
+            case PARSE_INSN:
+                sb.append(String.format("#%d/%04X: %s [%d,%d]", a, x, OpcodeDef.fromValue(b), c, d));
+                break;
+            case CONVERT_INSN:
+                sb.append(String.format("0x%X: %s -> IR [%d,%d)", x, OpcodeDef.fromValue(a), b, b + c));
+                break;
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Log and clear the recorded events, if any. Used on failures.
+     */
+    synchronized void dump(ILogger logger, String reason) {
+        if(count == 0) {
+            return;
+        }
+        logger.error("%s - trace:\n%s", reason, format());
+        count = 0;
+    }
+}
@@ -22,21 +22,33 @@ import static com.pnf.diemvm.Diem.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.pnfsoftware.jeb.client.Licensing;
 import com.pnfsoftware.jeb.core.IUnitCreator;
 import com.pnfsoftware.jeb.core.input.IInput;
+import com.pnfsoftware.jeb.core.output.AbstractUnitRepresentation;
+import com.pnfsoftware.jeb.core.output.IGenericDocument;
+import com.pnfsoftware.jeb.core.output.IUnitFormatter;
 import com.pnfsoftware.jeb.core.properties.IPropertyDefinitionManager;
+import com.pnfsoftware.jeb.core.units.INativeCodeUnit;
 import com.pnfsoftware.jeb.core.units.IUnit;
 import com.pnfsoftware.jeb.core.units.IUnitProcessor;
 import com.pnfsoftware.jeb.core.units.NotificationType;
 import com.pnfsoftware.jeb.core.units.UnitNotification;
+import com.pnfsoftware.jeb.core.units.code.asm.items.INativeMethodDataItem;
+import com.pnfsoftware.jeb.core.units.code.asm.items.INativeMethodItem;
 import com.pnfsoftware.jeb.core.units.code.asm.memory.IVirtualMemory;
 import com.pnfsoftware.jeb.core.units.code.asm.memory.MemoryException;
-import com.pnfsoftware.jeb.core.units.code.asm.processor.ProcessorException;
 import com.pnfsoftware.jeb.core.units.codeobject.AbstractCodeObjectUnit;
 import com.pnfsoftware.jeb.core.units.codeobject.CodeObjectUnitUtil;
 import com.pnfsoftware.jeb.core.units.codeobject.ILinkInfoProvider;
@@ -51,13 +63,14 @@ import com.pnfsoftware.jeb.core.units.codeobject.SymbolType;
 import com.pnfsoftware.jeb.util.base.Assert;
 import com.pnfsoftware.jeb.util.base.Throwables;
 import com.pnfsoftware.jeb.util.format.TextBuilder;
-import com.pnfsoftware.jeb.util.io.ByteArray;
 import com.pnfsoftware.jeb.util.io.Endianness;
 import com.pnfsoftware.jeb.util.io.IO;
 import com.pnfsoftware.jeb.util.logging.GlobalLog;
 import com.pnfsoftware.jeb.util.logging.ILogger;
 import com.pnfsoftware.jeb.util.serialization.annotations.Ser;
+import com.pnfsoftware.jeb.util.serialization.annotations.SerCustomInitPostGraph;
 import com.pnfsoftware.jeb.util.serialization.annotations.SerId;
+import com.pnfsoftware.jeb.util.serialization.annotations.SerTransient;
 
 /**
  * Parser for Diem modules and scripts. 
@@ -82,8 +95,12 @@ public class DiemUnit extends AbstractCodeObjectUnit {
     private static final long phyImportsBase = 0x2000_0000L;
     private static final String segImports = ".imports";
 
+    /** module bytes, read once from the input */
     @SerId(1)
-    byte[] rawbytes;
+    private byte[] rawbytes;
+    /** read-only view of the module bytes shared by the readers, not persisted (see getRawData) */
+    @SerTransient
+    private volatile ByteBuffer rawdata;
 
     @SerId(2)
     DiemBytecodeParser bytecodeParser;
@@ -114,66 +131,176 @@ public class DiemUnit extends AbstractCodeObjectUnit {
     DiemPool<FunctionDef> functionDefs = new DiemPool<>("Function Definitions");  // for modules only
     @SerId(22)
     FunctionDef main;  // for scripts only
+    @SerId(23)
+    DiemDataSlab dataSlab;
+
+    // only valid during the loading phase
+    @SerTransient
+    private boolean lazyBytecodeParsing;
+
+    /** canonical signature tokens (see internToken) */
+    @SerTransient
+    private volatile Map<SignatureToken, SignatureToken> sigtokens;
+
+    /** see getTracer */
+    @SerTransient
+    private DiemTracer tracer;
+
+    /** internal/external split of the function handles, not persisted (see getFunctionHandlePartition) */
+    @SerTransient
+    private volatile FunctionHandlePartition functionHandlePartition;
+    /** see getDataEntries */
+    @SerTransient
+    private volatile List<AbstractDataEntry> dataEntries;
+    /** lookup indexes of the mapped functions, not persisted (see getFunctionIndex) */
+    @SerTransient
+    private volatile FunctionIndex functionIndex;
+    /** JEB method index to internal function, see getFunctionByMethodIndex */
+    @SerTransient
+    private volatile MethodIndex functionsByMethodIndex;
 
     public DiemUnit(String name, IInput input, IUnitProcessor unitProcessor, IUnitCreator parent,
             IPropertyDefinitionManager pdm) {
         super(input, DiemIdentifier.TYPE, name, unitProcessor, parent, pdm);
     }
 
+    /**
+     * Convert the objects of a project saved by an older version of this plugin.
+     */
+    @SerCustomInitPostGraph
+    private void upgradeLegacyObjects() {
+        if(dataSlab == null) {
+            dataSlab = DiemDataSlab.rebuild(addressPool.getAll(), bytearrayPool.getAll(), stringPool.getAll());
+        }
+        for(FunctionDef f: getInternalFunctions()) {
+            f.getCode().upgradeLegacyInstructions(this, f.getFunctionHandleIndex());
+        }
+    }
+
     public DiemBytecodeParser getBytecodeParser() {
         return bytecodeParser;
     }
 
-    @Override
-    protected boolean processInternal() {
+    /**
+     * Retrieve the event tracer of this unit. Never null; the tracer is disabled unless the
+     * {@link DiemIdentifier#propnameTracing} property is set.
+     */
+    DiemTracer getTracer() {
+        DiemTracer r = tracer;
+        if(r == null) {
+            // not persisted, re-created on first use after a reload
+            r = getPropertyManager().getBoolean(DiemIdentifier.propnameTracing)
+                    ? new DiemTracer(DiemTracer.DEFAULT_CAPACITY): DiemTracer.DISABLED;
+            tracer = r;
+        }
+        return r;
+    }
+
+    /**
+     * Report a malformed part of the module that does not prevent its processing. May be called
+     * concurrently, e.g. while routines are decoded.
+     */
+    void notifyCorruption(String message) {
+        logger.warn("%s", message);
+        synchronized(this) {
+            addNotification(new UnitNotification(NotificationType.CORRUPTION, message));
+        }
+    }
+
+    /**
+     * Read the module tables and decode the routines (unless lazy parsing is enabled). Usage
+     * restricted to {@link #processInternal()} and benchmarks.
+     */
+    void loadModule() throws IOException {
         bytecodeParser = new DiemBytecodeParser(this);
+        lazyBytecodeParsing = getPropertyManager().getBoolean(DiemIdentifier.propnameLazyBytecodeParsing);
+        tracer = null;
 
-        try(InputStream in = getInput().getStream()) {
-            rawbytes = IO.readInputStream(in);
+        rawbytes = readInput();
+        rawdata = ByteBuffer.wrap(rawbytes).asReadOnlyBuffer();
+
+        // skip the preamble, magic+version, as it was verified by the identifier
+        DiemReader ba = new DiemReader(rawdata, 10);
+
+        // read the table directory
+        int tablecount = ba.u8();
+        Map<TableType, DiemReader> tables = new EnumMap<>(TableType.class);
+        for(int i = 0; i < tablecount; i++) {
+            int _type = ba.u8();
+            TableType t = TableType.fromValue(_type);
 
-            // skip the preamble, magic+version, as it was verified by the identifier
-            ByteArray ba = new ByteArray(rawbytes, 10);
+            int table_offset = ba.u31();
+            int table_size = ba.u31();
 
-            // parse the tables
-            int tablecount = ba.u8();
-            for(int i = 0; i < tablecount; i++) {
-                int _type = ba.u8();
-                TableType t = TableType.fromValue(_type);
+            if(tables.put(t, ba.view(table_offset, table_offset + table_size)) != null) {
+                throw new RuntimeException("Duplicate table: " + t);
+            }
+
+            // one section for each table
+            addSection(new SegmentInformation(t.toString(), table_offset, table_size, 0, 0,
+                    ISegmentInformation.FLAG_READ));
+        }
 
-                int table_offset = ba.u31();
-                int table_size = ba.u31();
+        // parse the tables: each one fills its own pool, non-code tables are independent of each other
+        tables.entrySet().parallelStream().filter(e -> !isCodeTable(e.getKey()))
+                .forEach(e -> processTable(e.getKey(), e.getValue()));
 
-                processTable(t, ba.copy(table_offset, table_offset + table_size));
+        // data pools are copied to the slab that backs the data segment
+        dataSlab = new DiemDataSlab(rawdata, addressPool.getAll(), bytearrayPool.getAll(), stringPool.getAll());
+        dataEntries = null;
 
-                // one section for each table
-                addSection(new SegmentInformation(t.toString(), table_offset, table_size, 0, 0,
-                        ISegmentInformation.FLAG_READ));
+        // code tables reference all others, they are processed last (only the bytecode boundaries are determined)
+        for(TableType t: tables.keySet()) {
+            if(isCodeTable(t)) {
+                processTable(t, tables.get(t));
             }
+        }
 
-            // all is parsed, we can pretty-print tables safely
-            if(Licensing.isDebugBuild()) {
-                logger.i(formatTables());
+        functionHandlePartition = new FunctionHandlePartition(this);
+
+        // decode the routines; they are independent from one another
+        if(!lazyBytecodeParsing) {
+            getInternalFunctions().parallelStream().forEach(e -> e.getCode().getInstructions());
+        }
+
+        // all is parsed, we can pretty-print tables safely
+        if(Licensing.isDebugBuild()) {
+            DiemTableFormatter formatter = new DiemTableFormatter(this);
+            for(int i = 0; i < formatter.getTableCount(); i++) {
+                StringBuilder sb = new StringBuilder();
+                try {
+                    formatter.formatTable(sb, i);
+                }
+                catch(IOException e) {
+                    throw new RuntimeException(e);
+                }
+                logger.i(sb.toString());
             }
+        }
+    }
+
+    @Override
+    protected boolean processInternal() {
+        try {
+            loadModule();
 
             // 1) create a pseudo DATA segment holding the addresses, bytearrays, and strings
-            long currentAddress = phyDataBase;
             for(AbstractDataEntry e: getDataEntries()) {
-                e.mappedAddress = currentAddress;
-                e.mappedSize = e.getBytes().length;
+                e.mappedAddress = phyDataBase + dataSlab.getOffset(e.slot);
+                e.mappedSize = dataSlab.getLength(e.slot);
                 SymbolInformation symbol = new SymbolInformation(SymbolType.VARIABLE, 0,
                         e.getIndex(), null, 0, e.mappedAddress, e.mappedSize);
                 String basetype = e instanceof StringEntry ? "char": "byte";
                 symbol.setSymbolDataTypeInformation(basetype + "[" + e.mappedSize + "]");
                 addSymbol(symbol);
-                currentAddress += e.mappedSize;
             }
-            int segsize = (int)(currentAddress - phyDataBase);
+            int segsize = dataSlab.getSize();
             if(segsize > 0) {
                 addSegment(new SegmentInformation(segData, 0, 0, phyDataBase, segsize, ISegmentInformation.FLAG_RWX));
             }
 
             // 2) create a pseudo CODE segment holding the aggregate of all internal functions
-            currentAddress = phyCodeBase;
+            long currentAddress = phyCodeBase;
             for(FunctionDef e: getInternalFunctions()) {
                 e.mappedAddress = currentAddress;
                 e.mappedSize = e.getCode().getInsnFileSize();
@@ -185,6 +312,7 @@ public class DiemUnit extends AbstractCodeObjectUnit {
             if(segsize > 0) {
                 addSegment(new SegmentInformation(segCode, 0, 0, phyCodeBase, segsize, ISegmentInformation.FLAG_RWX));
             }
+            functionIndex = new FunctionIndex(this);
 
             // 3) create a pseudo IMPORTS segment holding pointers to functions residing in external modules
             currentAddress = phyImportsBase;
@@ -237,11 +365,43 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         }
         catch(Exception e) {
             logger.catching(e);
+            getTracer().dump(logger, "Cannot process module");
             return false;
         }
     }
 
-    private void processTable(TableType t, ByteArray ba) {
+    /**
+     * Read the module bytes onto the heap. The input is closed right away: it is neither kept open
+     * nor mapped for the lifetime of the unit.
+     */
+    private byte[] readInput() throws IOException {
+        try(InputStream in = getInput().getStream()) {
+            return IO.readInputStream(in);
+        }
+    }
+
+    /**
+     * Retrieve the module bytes. They are persisted with the unit, so that lazy decoding does not
+     * depend on the unit's input after a project reload.
+     */
+    ByteBuffer getRawData() {
+        ByteBuffer r = rawdata;
+        if(r == null) {
+            // the view is not persisted, recreate it on first use after a reload
+            if(rawbytes == null) {
+                throw new RuntimeException("The module bytes are not available: the unit was not processed");
+            }
+            r = ByteBuffer.wrap(rawbytes).asReadOnlyBuffer();
+            rawdata = r;
+        }
+        return r;
+    }
+
+    private static boolean isCodeTable(TableType t) {
+        return t == TableType.FUNCTION_DEFS || t == TableType.MAIN;
+    }
+
+    private void processTable(TableType t, DiemReader ba) {
         switch(t) {
         case MODULE_HANDLES:
             loadModuleHandles(ba);
@@ -277,12 +437,9 @@ public class DiemUnit extends AbstractCodeObjectUnit {
             loadFieldDefs(ba);
             break;
         case FUNCTION_DEFS:
-            // TODO: verify: parsing function defs requires access to the other tables
-            // it seems that is the case (all other tables are inserted first), but I haven't read that explicitly in the specs
             loadFunctionDefs(ba);
             break;
         case MAIN:
-            // same note as FUNCTION_DEFS
             loadMain(ba);
             break;
         default:
@@ -290,7 +447,7 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         }
     }
 
-    private void loadModuleHandles(ByteArray ba) {
+    private void loadModuleHandles(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             int address = ba.varu16();
             int name = ba.varu16();
@@ -298,7 +455,7 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         }
     }
 
-    private void loadStructHandles(ByteArray ba) {
+    private void loadStructHandles(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             int module_handle = ba.varu16();
             int name = ba.varu16();
@@ -307,7 +464,7 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         }
     }
 
-    private void loadFunctionHandles(ByteArray ba) {
+    private void loadFunctionHandles(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             int module_handle = ba.varu16();
             int name = ba.varu16();
@@ -316,41 +473,45 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         }
     }
 
-    private void loadAddressPool(ByteArray ba) {
+    private void loadAddressPool(DiemReader ba) {
         if(ba.available() % ADDRESS_LENGTH != 0) {
             throw new RuntimeException();
         }
         while(ba.position() < ba.maxPosition()) {
-            byte[] a = ba.get(ADDRESS_LENGTH);
-            addressPool.add(new AddressEntry(a));
+            AddressEntry e = new AddressEntry();
+            e.setFilePosition(ba.position(), ADDRESS_LENGTH);
+            ba.skip(ADDRESS_LENGTH);
+            addressPool.add(e);
         }
     }
 
-    private void loadBytearrayPool(ByteArray ba) {
+    private void loadBytearrayPool(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             int len = ba.vari32();
             if(len < 0 || len > 0xFFFF) {
                 throw new RuntimeException();
             }
-            byte[] bytes = ba.get(len);
-            bytearrayPool.add(new BytearrayEntry(bytes));
+            BytearrayEntry e = new BytearrayEntry();
+            e.setFilePosition(ba.position(), len);
+            ba.skip(len);
+            bytearrayPool.add(e);
         }
     }
 
-    private void loadStringPool(ByteArray ba) {
+    private void loadStringPool(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             int len = ba.vari32();
             if(len < 0 || len > 0xFFFF) {
                 throw new RuntimeException();
             }
-            int off = ba.position();
-            String s = new String(ba.bytes(), off, len);
-            ba.position(off + len);
-            stringPool.add(new StringEntry(s));
+            StringEntry e = new StringEntry();
+            e.setFilePosition(ba.position(), len);
+            ba.skip(len);
+            stringPool.add(e);
         }
     }
 
-    private void loadFunctionSignatures(ByteArray ba) {
+    private void loadFunctionSignatures(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             int st = ba.u8();
             if(st != SignatureType.FUNCTION_SIGNATURE.getValue()) {
@@ -373,7 +534,7 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         }
     }
 
-    private void loadLocalSignatures(ByteArray ba) {
+    private void loadLocalSignatures(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             int st = ba.u8();
             if(st != SignatureType.LOCAL_SIGNATURE.getValue()) {
@@ -390,7 +551,7 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         }
     }
 
-    private void loadTypeSignatures(ByteArray ba) {
+    private void loadTypeSignatures(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             int st = ba.u8();
             if(st != SignatureType.TYPE_SIGNATURE.getValue()) {
@@ -402,7 +563,7 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         }
     }
 
-    private SignatureToken readSigToken(ByteArray ba) {
+    private SignatureToken readSigToken(DiemReader ba) {
         int value = ba.u8();
         SerializedType st = SerializedType.fromValue(value);
         switch(st) {
@@ -411,55 +572,88 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         case STRING:
         case BYTEARRAY:
         case ADDRESS:
-            return new SignatureToken(st);
+            return internToken(new SignatureToken(st));
         case REFERENCE:
-            return new SignatureToken(readSigToken(ba), false);
+            return getReferenceToken(readSigToken(ba), false);
         case MUTABLE_REFERENCE:
-            return new SignatureToken(readSigToken(ba), true);
+            return getReferenceToken(readSigToken(ba), true);
         case STRUCT:
-            return new SignatureToken(ba.varu16());
+            return getStructToken(ba.varu16());
         default:
             throw new RuntimeException("TBI: " + st);
         }
     }
 
-    private void loadMain(ByteArray ba) {
+    /**
+     * Retrieve the canonical instance of a signature token. Tokens are compared structurally; equal
+     * tokens read from the tables or built by the converter share a single instance.
+     */
+    SignatureToken internToken(SignatureToken token) {
+        Map<SignatureToken, SignatureToken> map = sigtokens;
+        if(map == null) {
+            synchronized(this) {
+                if(sigtokens == null) {
+                    // not persisted, re-created on first use after a reload
+                    Map<SignatureToken, SignatureToken> m = new ConcurrentHashMap<>();
+                    for(SignatureToken t: Arrays.asList(SignatureToken.stUint64, SignatureToken.stBool,
+                            SignatureToken.stAddress, SignatureToken.stBytearray, SignatureToken.stString,
+                            SignatureToken.stAnyImmutableRef, SignatureToken.stAnyMutableRef)) {
+                        m.put(t, t);
+                    }
+                    sigtokens = m;
+                }
+                map = sigtokens;
+            }
+        }
+        SignatureToken r = map.putIfAbsent(token, token);
+        return r != null ? r: token;
+    }
+
+    /** canonical reference token to the provided target */
+    SignatureToken getReferenceToken(SignatureToken target, boolean mutable) {
+        return internToken(new SignatureToken(internToken(target), mutable));
+    }
+
+    /** canonical struct token */
+    SignatureToken getStructToken(int sh_index) {
+        return internToken(new SignatureToken(sh_index));
+    }
+
+    private void loadMain(DiemReader ba) {
         main = readFunctionDef(ba);
     }
 
-    private void loadFunctionDefs(ByteArray ba) {
+    private void loadFunctionDefs(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             FunctionDef f = readFunctionDef(ba);
             functionDefs.add(f);
         }
     }
 
-    private FunctionDef readFunctionDef(ByteArray ba) {
+    private FunctionDef readFunctionDef(DiemReader ba) {
         int function_handle_index = ba.varu16();
         int flags = ba.u8();
         CodeUnit codeunit = readCodeUnit(ba, function_handle_index, flags);
         return new FunctionDef(function_handle_index, flags, codeunit);
     }
 
-    private CodeUnit readCodeUnit(ByteArray ba, int function_handle_index, int flags) {
+    private CodeUnit readCodeUnit(DiemReader ba, int function_handle_index, int flags) {
         int max_stack_size = ba.varu16();
         int locals_index = ba.varu16();
         int insncnt = ba.u16();
 
         int bytecode_offset = ba.position();
-        logger.i("==> Parsing bytecode at 0x%X: fh=%d, mss=%d, sig=%d, insncnt=%d", bytecode_offset,
-                function_handle_index, max_stack_size, locals_index, insncnt);
-
-        List<DiemInstruction> insnlist;
-        try {
-            insnlist = bytecodeParser.parseFunction(function_handle_index, insncnt, bytecode_offset, ba.maxPosition());
-        }
-        catch(ProcessorException e) {
-            throw new RuntimeException(e);
+        DiemTracer tracer = getTracer();
+        if(tracer.isEnabled()) {
+            tracer.record(DiemTracer.Event.LOAD_FUNCTION, function_handle_index, max_stack_size, locals_index, insncnt,
+                    bytecode_offset);
         }
 
-        CodeUnit code = new CodeUnit(max_stack_size, locals_index, insnlist);
-        code.setInsnFileOffset(bytecode_offset);
+        // only determine the bytecode boundaries: instructions are decoded after all tables are loaded,
+        // or on first access in lazy mode
+        int size = DiemBytecodeParser.scanFunctionSize(rawdata, insncnt, bytecode_offset, ba.maxPosition());
+        CodeUnit code = new CodeUnit(this, function_handle_index, max_stack_size, locals_index, insncnt,
+                bytecode_offset, size);
 
         // move the cursor forward (= do as if reading was done from this bytearray)
         ba.skip(code.getInsnFileSize());
@@ -467,7 +661,7 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         return code;
     }
 
-    private void loadStructDefs(ByteArray ba) {
+    private void loadStructDefs(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             int struct_handle = ba.varu16();
             int field_count = ba.varu16();
@@ -476,7 +670,7 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         }
     }
 
-    private void loadFieldDefs(ByteArray ba) {
+    private void loadFieldDefs(DiemReader ba) {
         while(ba.position() < ba.maxPosition()) {
             int struct_handle = ba.varu16();
             int name = ba.varu16();
@@ -487,12 +681,17 @@ public class DiemUnit extends AbstractCodeObjectUnit {
 
     // --- end of pool parsing methods ---
 
-    /** order: addresses, bytearrays, strings */
+    /** order: addresses, bytearrays, strings; the list is read-only */
     public List<AbstractDataEntry> getDataEntries() {
-        List<AbstractDataEntry> r = new ArrayList<>();
-        r.addAll(addressPool.getAll());
-        r.addAll(bytearrayPool.getAll());
-        r.addAll(stringPool.getAll());
+        List<AbstractDataEntry> r = dataEntries;
+        if(r == null) {
+            r = new ArrayList<>(addressPool.size() + bytearrayPool.size() + stringPool.size());
+            r.addAll(addressPool.getAll());
+            r.addAll(bytearrayPool.getAll());
+            r.addAll(stringPool.getAll());
+            r = Collections.unmodifiableList(r);
+            dataEntries = r;
+        }
         return r;
     }
 
@@ -505,21 +704,57 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         return functionDefs.getAll();
     }
 
-    public List<FunctionHandle> getExternalFunctionHandles() {
-        List<FunctionHandle> internals = new ArrayList<>();
-        for(FunctionDef e: getInternalFunctions()) {
-            internals.add(e.getHandle(this));
-        }
-        List<FunctionHandle> r = new ArrayList<>();
-        for(FunctionHandle e: functionHandles) {
-            // NOTE: we could check that the module name is not '<SELF>', but is this standard?
-            if(!internals.contains(e)) {
-                r.add(e);
+    /**
+     * Split of the function handles between internal functions (defined in this module) and external
+     * ones, built once after the tables are loaded.
+     */
+    private static class FunctionHandlePartition {
+        final List<FunctionHandle> externals;
+
+        FunctionHandlePartition(DiemUnit unit) {
+            int cnt = unit.functionHandles.size();
+            BitSet internal = new BitSet();
+            for(FunctionDef e: unit.getInternalFunctions()) {
+                int index = e.getFunctionHandleIndex();
+                if(index < 0 || index >= cnt) {
+                    throw new RuntimeException("Illegal function handle index: " + index);
+                }
+                internal.set(index);
+            }
+            List<FunctionHandle> ex = new ArrayList<>(cnt - internal.cardinality());
+            for(FunctionHandle e: unit.functionHandles) {
+                // NOTE: we could check that the module name is not '<SELF>', but is this standard?
+                if(!internal.get(e.getIndex())) {
+                    ex.add(e);
+                }
             }
+            externals = Collections.unmodifiableList(ex);
+        }
+    }
+
+    private FunctionHandlePartition getFunctionHandlePartition() {
+        FunctionHandlePartition r = functionHandlePartition;
+        if(r == null) {
+            r = buildFunctionHandlePartition();
+        }
+        return r;
+    }
+
+    private synchronized FunctionHandlePartition buildFunctionHandlePartition() {
+        FunctionHandlePartition r = functionHandlePartition;
+        if(r == null) {
+            // not persisted, rebuilt on first use after a reload
+            r = new FunctionHandlePartition(this);
+            functionHandlePartition = r;
         }
         return r;
     }
 
+    /** handles of the functions imported from other modules; the returned list is read-only */
+    public List<FunctionHandle> getExternalFunctionHandles() {
+        return getFunctionHandlePartition().externals;
+    }
+
     @Override
     protected boolean shouldAllocateFullImage() {
         return false;
@@ -544,12 +779,11 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         try {
             // (segment .data) map addresses/bytearrays/strings
             if(CodeObjectUnitUtil.findSegmentByName(this, segData) != null) {
-                for(AbstractDataEntry e: getDataEntries()) {
-                    int size = e.mappedSize;
-                    int writesize = mem.write(e.mappedAddress, size, e.getBytes(), 0);
-                    if(writesize != size) {
-                        throw new MemoryException("Partial write");
-                    }
+                // the slab is laid out as the segment
+                byte[] data = dataSlab.getData();
+                int writesize = mem.write(phyDataBase, data.length, data, 0);
+                if(writesize != data.length) {
+                    throw new MemoryException("Partial write");
                 }
             }
 
@@ -557,7 +791,8 @@ public class DiemUnit extends AbstractCodeObjectUnit {
             if(CodeObjectUnitUtil.findSegmentByName(this, segCode) != null) {
                 for(FunctionDef e: getInternalFunctions()) {
                     int size = e.getCode().getInsnFileSize();
-                    int writesize = mem.write(e.mappedAddress, size, rawbytes, e.getCode().getInsnFileOffset());
+                    byte[] code = new DiemReader(getRawData(), 0).getBytes(e.getCode().getInsnFileOffset(), size);
+                    int writesize = mem.write(e.mappedAddress, size, code, 0);
                     if(writesize != size) {
                         throw new MemoryException("Partial write");
                     }
@@ -595,58 +830,176 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         return functionHandles.get(fh_index).getName(this);
     }
 
+    /**
+     * Immutable lookup indexes of the functions, built once the functions are mapped.
+     */
+    private static class FunctionIndex {
+        /** mapped internal functions with code, sorted by start address (see getFunctionContaining) */
+        final long[] starts;
+        final FunctionDef[] byStart;
+        final Map<Long, FunctionDef> byAddress = new HashMap<>();
+        final Map<String, FunctionDef> byName = new HashMap<>();
+        final Map<String, FunctionHandle> handlesByName = new HashMap<>();
+
+        FunctionIndex(DiemUnit unit) {
+            List<FunctionDef> list = new ArrayList<>();
+            for(FunctionDef e: unit.getInternalFunctions()) {
+                // on duplicates, the first entry wins
+                byAddress.putIfAbsent(e.mappedAddress, e);
+                byName.putIfAbsent(e.getHandle(unit).getName(unit), e);
+                // functions without bytecode (e.g. natives) do not contain any address
+                if(e.mappedSize > 0) {
+                    list.add(e);
+                }
+            }
+            for(FunctionHandle e: unit.functionHandles) {
+                handlesByName.putIfAbsent(e.getName(unit), e);
+            }
+
+            // functions are mapped contiguously in order, the list is already sorted by address
+            starts = new long[list.size()];
+            for(int i = 0; i < starts.length; i++) {
+                starts[i] = list.get(i).mappedAddress;
+                Assert.a(i == 0 || starts[i] > starts[i - 1], "Function addresses are not sorted");
+            }
+            byStart = list.toArray(new FunctionDef[list.size()]);
+        }
+    }
+
+    private FunctionIndex getFunctionIndex() {
+        FunctionIndex r = functionIndex;
+        if(r == null) {
+            r = buildFunctionIndex();
+        }
+        return r;
+    }
+
+    private synchronized FunctionIndex buildFunctionIndex() {
+        FunctionIndex r = functionIndex;
+        if(r == null) {
+            // the index is not persisted, rebuild it on first use after a reload
+            r = new FunctionIndex(this);
+            functionIndex = r;
+        }
+        return r;
+    }
+
     FunctionDef getFunctionByAddress(long address) {
-        for(FunctionDef e: getInternalFunctions()) {
-            if(address == e.mappedAddress) {
-                return e;
+        return getFunctionIndex().byAddress.get(address);
+    }
+
+    /**
+     * Retrieve the internal function whose code contains the provided address.
+     * 
+     * @param address a memory address within the code segment
+     * @return the function, null if none
+     */
+    FunctionDef getFunctionContaining(long address) {
+        FunctionIndex index = getFunctionIndex();
+        int i = Arrays.binarySearch(index.starts, address);
+        if(i < 0) {
+            // index of the closest function starting below the address
+            i = -i - 2;
+            if(i < 0) {
+                return null;
             }
         }
-        return null;
+        FunctionDef f = index.byStart[i];
+        if(address >= f.mappedAddress + f.mappedSize) {
+            return null;
+        }
+        return f;
     }
 
     FunctionDef getFunctionByName(String name) {
         if(name == null) {
             throw new IllegalArgumentException();
         }
-        for(FunctionDef e: getInternalFunctions()) {
-            FunctionHandle handle = e.getHandle(this);
-            if(name.equals(handle.getName(this))) {
-                return e;
-            }
-        }
-        return null;
+        return getFunctionIndex().byName.get(name);
     }
 
     FunctionHandle getFunctionHandleByName(String name) {
         if(name == null) {
             throw new IllegalArgumentException();
         }
-        for(FunctionHandle e: functionHandles) {
-            if(name.equals(e.getName(this))) {
-                return e;
+        return getFunctionIndex().handlesByName.get(name);
+    }
+
+    /**
+     * Retrieve the internal function of a routine of the code unit.
+     * 
+     * @param code the code unit, child of this unit
+     * @param index JEB index of the routine
+     * @return the function, null if none (e.g. imported routine)
+     */
+    FunctionDef getFunctionByMethodIndex(INativeCodeUnit<?> code, int index) {
+        INativeMethodItem routine = code.getMethodByIndex(index);
+        if(routine == null) {
+            return null;
+        }
+        MethodIndex map = functionsByMethodIndex;
+        MethodIndex.Entry e = map == null ? null: map.entries.get(index);
+        if(e == null || !e.isCurrent(routine)) {
+            // JEB indexes are assigned by the code analysis: the map is built on first use, and rebuilt if
+            // the routine was added, replaced or moved since then
+            map = new MethodIndex(this, code.getMethods());
+            functionsByMethodIndex = map;
+            e = map.entries.get(index);
+        }
+        return e == null ? null: e.function;
+    }
+
+    /**
+     * Internal functions of the routines of the code unit, by JEB method index.
+     */
+    private static class MethodIndex {
+        static class Entry {
+            /** routine item, as of the time the map was built */
+            final INativeMethodItem routine;
+            /** address of the routine's code, -1 if none */
+            final long address;
+            /** null if none (e.g. imported or not yet defined routine) */
+            final FunctionDef function;
+
+            Entry(DiemUnit unit, INativeMethodItem routine) {
+                this.routine = routine;
+                address = getAddress(routine);
+                function = address == -1 ? null: unit.getFunctionByAddress(address);
+            }
+
+            /** true if the entry is that of the routine: same item, same code address */
+            boolean isCurrent(INativeMethodItem routine) {
+                return this.routine == routine && address == getAddress(routine);
+            }
+        }
+
+        final Map<Integer, Entry> entries = new HashMap<>();
+
+        MethodIndex(DiemUnit unit, List<? extends INativeMethodItem> routines) {
+            for(INativeMethodItem routine: routines) {
+                entries.put(routine.getIndex(), new Entry(unit, routine));
             }
         }
-        return null;
+
+        static long getAddress(INativeMethodItem routine) {
+            INativeMethodDataItem data = routine.getData();
+            return data == null ? -1: data.getMemoryAddress();
+        }
     }
 
+    /**
+     * Render all tables into a single string. Prefer {@link DiemTableFormatter} or the paged tables
+     * document for large units.
+     */
     public String formatTables() {
-        TextBuilder t = new TextBuilder();
-        moduleHandles.format(this, t).eol();
-        structHandles.format(this, t).eol();
-        functionHandles.format(this, t).eol();
-        structDefs.format(this, t).eol();
-        fieldDefs.format(this, t).eol();
-        typeSignatures.format(this, t).eol();
-        functionSignatures.format(this, t).eol();
-        localSignatures.format(this, t).eol();
-        stringPool.format(this, t).eol();
-        bytearrayPool.format(this, t).eol();
-        addressPool.format(this, t).eol();
-        functionDefs.format(this, t).eol();
-        if(main != null) {
-            main.format(this, t).eol();
+        StringBuilder sb = new StringBuilder();
+        try {
+            new DiemTableFormatter(this).format(sb);
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
         }
-        return t.toString();
+        return sb.toString();
     }
 
     String formatObject(DiemObject o) {
@@ -657,10 +1010,16 @@ public class DiemUnit extends AbstractCodeObjectUnit {
     @Override
     public String getDescription() {
         StringBuilder sb = new StringBuilder();
-        //sb.append(super.getDescription());
         try {
-            //sb.append("\n\nDiem tables:\n");
-            sb.append(formatTables());
+            // the tables themselves are in the paged tables document: they can be very large
+            DiemTableFormatter formatter = new DiemTableFormatter(this);
+            sb.append(main != null ? "Diem script": "Diem module").append("\n\n");
+            for(int i = 0; i < formatter.getTableCount(); i++) {
+                String name = formatter.getTableName(i);
+                if(name != null) {
+                    sb.append(String.format("%s: %d\n", name, formatter.getEntryCount(i)));
+                }
+            }
         }
         catch(Exception e) {
             sb.append("\n\nAn error occurred when formatting the tables:\n");
@@ -669,6 +1028,18 @@ public class DiemUnit extends AbstractCodeObjectUnit {
         return sb.toString();
     }
 
+    @Override
+    public IUnitFormatter getFormatter() {
+        IUnitFormatter formatter = super.getFormatter();
+        formatter.addPresentation(new AbstractUnitRepresentation("Tables", false) {
+            @Override
+            public IGenericDocument createDocument() {
+                return new DiemTablesDocument(DiemUnit.this);
+            }
+        }, false);
+        return formatter;
+    }
+
     @Override
     public byte[] getIconData() {
         try {
@@ -0,0 +1,138 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import com.pnf.diemvm.Diem.OpcodeDef;
+import com.pnfsoftware.jeb.client.HeadlessClientContext;
+import com.pnfsoftware.jeb.core.IEnginesContext;
+import com.pnfsoftware.jeb.core.IRuntimeProject;
+import com.pnfsoftware.jeb.core.input.BytesInput;
+
+/**
+ * Base class of the tests of the Diem module loader and bytecode analyses. Modules of the
+ * <code>diem.testdata</code> folder (default: testdata/) are loaded by the identifier directly:
+ * tables are parsed and routines decoded, the native analysis is not run.
+ * <p>
+ * Synthetic routines are built as instruction tables, see {@link #createTable(DiemUnit, Object...)}.
+ */
+public abstract class AbstractDiemTest {
+    private static HeadlessClientContext client;
+    private static IRuntimeProject project;
+    private static DiemIdentifier identifier;
+
+    @BeforeClass
+    public static void startEngines() throws Exception {
+        client = new HeadlessClientContext();
+        client.initialize(new String[0]);
+        client.start();
+        IEnginesContext engctx = client.getEnginesContext();
+        project = engctx.loadProject("diem-test");
+        identifier = new DiemIdentifier();
+        identifier.initialize(engctx.getPropertyDefinitionManager());
+    }
+
+    @AfterClass
+    public static void stopEngines() {
+        client.stop();
+    }
+
+    static Path getTestFile(String name) {
+        return Paths.get(System.getProperty("diem.testdata", "testdata"), name);
+    }
+
+    static String readTestFile(String name) throws IOException {
+        return new String(Files.readAllBytes(getTestFile(name)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Load the tables and decode the routines of a test module.
+     */
+    static DiemUnit loadModule(String name) throws IOException {
+        byte[] data = Files.readAllBytes(getTestFile(name));
+        DiemUnit unit = (DiemUnit)identifier.prepare(name, new BytesInput(data), project.getProcessor(), project,
+                new HashMap<>());
+        unit.loadModule();
+        return unit;
+    }
+
+    /**
+     * Build the instruction table of a synthetic routine. Instructions are one byte long, so that
+     * branch targets are both instruction indexes and offsets; the linear stack heights are those
+     * of the opcode definitions.
+     * 
+     * @param insns opcodes, each followed by its operand if it has one
+     */
+    static DiemInstructionTable createTable(DiemUnit unit, Object... insns) {
+        int count = 0;
+        for(Object o: insns) {
+            if(o instanceof OpcodeDef) {
+                count++;
+            }
+        }
+        DiemInstructionTable table = new DiemInstructionTable(unit, null, 0, count);
+        int height = 0;
+        for(int i = 0, k = 0; i < count; i++) {
+            OpcodeDef opcode = (OpcodeDef)insns[k++];
+            long operand = 0;
+            if(k < insns.length && insns[k] instanceof Number) {
+                operand = ((Number)insns[k++]).longValue();
+            }
+            table.set(i, opcode.getOpcode(), operand, i);
+            int pre = height;
+            height = Math.max(0, height - Math.max(0, opcode.getPopCount())) + Math.max(0, opcode.getPushCount());
+            table.setStackDeltas(i, pre, height);
+        }
+        table.setEndOffset(count);
+        return table;
+    }
+
+    /**
+     * Create the code unit of a synthetic routine: it returns nothing, and its locals are those of
+     * the largest locals signature of the module.
+     */
+    static CodeUnit createCode(DiemUnit unit, DiemInstructionTable table) {
+        int fh = -1;
+        for(int i = 0; i < unit.functionHandles.size() && fh < 0; i++) {
+            if(unit.getFunctionSignature(i).getReturnTokens().isEmpty()) {
+                fh = i;
+            }
+        }
+        if(fh < 0) {
+            throw new IllegalArgumentException("No routine without return values in " + unit.getName());
+        }
+        int locals = 0;
+        for(int i = 1; i < unit.localSignatures.size(); i++) {
+            if(unit.localSignatures.get(i).getTokens().size() > unit.localSignatures.get(locals).getTokens()
+                    .size()) {
+                locals = i;
+            }
+        }
+        return new CodeUnit(unit, fh, table.size(), locals, table.size(), 0, table.getByteSize());
+    }
+}
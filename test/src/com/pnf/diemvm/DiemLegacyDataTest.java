@@ -0,0 +1,74 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+/**
+ * Projects saved before the data slab was used: the pool entries held their own bytes, and the
+ * slab is rebuilt from them after the project is loaded.
+ */
+public class DiemLegacyDataTest extends AbstractDiemTest {
+
+    @Test
+    public void slabIsRebuiltFromEntries() throws Exception {
+        for(String name: DiemTablesTest.MODULES) {
+            DiemUnit unit = loadModule(name + ".bin");
+            byte[] data = unit.dataSlab.getData().clone();
+            int[] fileOffsets = unit.getDataEntries().stream().mapToInt(e -> e.fileOffset).toArray();
+
+            // state of a reloaded legacy project: the entries hold their bytes, there is no slab
+            for(AddressEntry e: unit.addressPool.getAll()) {
+                setLegacyBytes(e, e.getBytes());
+                e.slab = null;
+            }
+            for(BytearrayEntry e: unit.bytearrayPool.getAll()) {
+                setLegacyBytes(e, e.getBytes());
+                e.slab = null;
+            }
+            for(StringEntry e: unit.stringPool.getAll()) {
+                e.get();
+                e.slab = null;
+            }
+            unit.dataSlab = null;
+
+            // run the post-load conversion, as the deserializer does
+            Method upgrade = DiemUnit.class.getDeclaredMethod("upgradeLegacyObjects");
+            upgrade.setAccessible(true);
+            upgrade.invoke(unit);
+
+            assertArrayEquals(data, unit.dataSlab.getData());
+            // the entries keep their position in the module file
+            assertArrayEquals(fileOffsets, unit.getDataEntries().stream().mapToInt(e -> e.fileOffset).toArray());
+            assertEquals(name, readTestFile(name + ".expected").strip(), unit.formatTables().strip());
+        }
+    }
+
+    private static void setLegacyBytes(AbstractDataEntry e, byte[] bytes) throws ReflectiveOperationException {
+        Field f = e.getClass().getDeclaredField("legacyBytes");
+        f.setAccessible(true);
+        f.set(e, bytes);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import static com.pnf.diemvm.Diem.OpcodeDef.BR_FALSE;
+import static com.pnf.diemvm.Diem.OpcodeDef.COPY_LOC;
+import static com.pnf.diemvm.Diem.OpcodeDef.LD_REF_LOC;
+import static com.pnf.diemvm.Diem.OpcodeDef.LD_TRUE;
+import static com.pnf.diemvm.Diem.OpcodeDef.MOVE_LOC;
+import static com.pnf.diemvm.Diem.OpcodeDef.POP;
+import static com.pnf.diemvm.Diem.OpcodeDef.RET;
+import static com.pnf.diemvm.Diem.OpcodeDef.ST_LOC;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Liveness of the locals moved by synthetic routines.
+ */
+public class DiemLocalLivenessTest extends AbstractDiemTest {
+    private static DiemUnit unit;
+
+    @BeforeClass
+    public static void loadUnit() throws Exception {
+        unit = loadModule("libra_coin.bin");
+    }
+
+    private static BitSet getLiveMoves(Object... insns) {
+        DiemInstructionTable table = createTable(unit, insns);
+        return DiemLocalLiveness.getLiveMoves(table,
+                DiemStackVerifier.verify(unit, createCode(unit, table), table));
+    }
+
+    @Test
+    public void deadMove() {
+        assertTrue(getLiveMoves(MOVE_LOC, 0, POP, RET).isEmpty());
+    }
+
+    @Test
+    public void moveOfBorrowedLocal() {
+        // the local may be read through the reference after the move
+        BitSet live = getLiveMoves(LD_REF_LOC, 0, POP, MOVE_LOC, 0, POP, RET);
+        assertEquals(1, live.cardinality());
+        assertTrue(live.get(2));
+    }
+
+    @Test
+    public void moveReadAfterwards() {
+        assertTrue(getLiveMoves(MOVE_LOC, 0, POP, COPY_LOC, 0, POP, RET).get(0));
+    }
+
+    @Test
+    public void moveStoredBeforeRead() {
+        assertFalse(getLiveMoves(MOVE_LOC, 0, ST_LOC, 0, COPY_LOC, 0, POP, RET).get(0));
+    }
+
+    @Test
+    public void moveReadInSuccessor() {
+        BitSet live = getLiveMoves(MOVE_LOC, 0, POP, LD_TRUE, BR_FALSE, 6, COPY_LOC, 0, POP, RET);
+        assertTrue(live.get(0));
+    }
+
+    @Test
+    public void moveOfOtherLocal() {
+        assertFalse(getLiveMoves(MOVE_LOC, 1, POP, COPY_LOC, 0, POP, RET).get(0));
+    }
+
+    @Test
+    public void unverifiedStack() {
+        DiemInstructionTable table = createTable(unit, MOVE_LOC, 0, POP, MOVE_LOC, 1, POP, RET);
+        BitSet live = DiemLocalLiveness.getLiveMoves(table, null);
+        assertTrue(live.get(0));
+        assertTrue(live.get(2));
+    }
+}
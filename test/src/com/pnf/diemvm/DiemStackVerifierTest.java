@@ -0,0 +1,121 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import static com.pnf.diemvm.Diem.OpcodeDef.BORROW_REF;
+import static com.pnf.diemvm.Diem.OpcodeDef.BRANCH;
+import static com.pnf.diemvm.Diem.OpcodeDef.BR_FALSE;
+import static com.pnf.diemvm.Diem.OpcodeDef.FREEZE_REF;
+import static com.pnf.diemvm.Diem.OpcodeDef.LD_ADDR;
+import static com.pnf.diemvm.Diem.OpcodeDef.LD_CONST;
+import static com.pnf.diemvm.Diem.OpcodeDef.LD_TRUE;
+import static com.pnf.diemvm.Diem.OpcodeDef.POP;
+import static com.pnf.diemvm.Diem.OpcodeDef.RET;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Stack verification of synthetic routines, in particular at the joins of their blocks.
+ */
+public class DiemStackVerifierTest extends AbstractDiemTest {
+    private static DiemUnit unit;
+
+    @BeforeClass
+    public static void loadUnit() throws Exception {
+        unit = loadModule("libra_coin.bin");
+    }
+
+    private static DiemStackVerifier.BlockStacks verify(Object... insns) {
+        DiemInstructionTable table = createTable(unit, insns);
+        return DiemStackVerifier.verify(unit, createCode(unit, table), table);
+    }
+
+    @Test
+    public void balancedBlocks() {
+        DiemStackVerifier.BlockStacks stacks = verify(LD_TRUE, BR_FALSE, 3, BRANCH, 3, RET);
+        assertEquals(3, stacks.getBlockCount());
+        for(int b = 0; b < stacks.getBlockCount(); b++) {
+            assertEquals(0, stacks.getEntryHeight(b));
+        }
+    }
+
+    @Test
+    public void joinOfSameTypes() {
+        // both branches push an integer consumed after the join
+        DiemStackVerifier.BlockStacks stacks = verify(LD_TRUE, BR_FALSE, 4, LD_CONST, 1, BRANCH, 5, LD_CONST, 2,
+                POP, RET);
+        int join = stacks.getBlockAt(5);
+        assertEquals(1, stacks.getEntryHeight(join));
+        assertEquals(SignatureToken.stUint64, stacks.getEntryType(join, 0));
+    }
+
+    @Test
+    public void joinOfFrozenReferences() {
+        // both branches freeze a mutable reference to a resource
+        DiemStackVerifier.BlockStacks stacks = verify(LD_TRUE, BR_FALSE, 6, LD_ADDR, 0, BORROW_REF, 0, FREEZE_REF,
+                BRANCH, 9, LD_ADDR, 0, BORROW_REF, 0, FREEZE_REF, POP, RET);
+        int join = stacks.getBlockAt(9);
+        assertEquals(1, stacks.getEntryHeight(join));
+        SignatureToken struct = unit.getStructToken(unit.structDefs.get(0).getHandleIndex());
+        assertEquals(unit.getReferenceToken(struct, false), stacks.getEntryType(join, 0));
+    }
+
+    @Test
+    public void joinOfDifferentTypes() {
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> verify(LD_TRUE, BR_FALSE, 4, LD_CONST, 1, BRANCH, 5, LD_TRUE, POP, RET));
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Inconsistent stack type"));
+    }
+
+    @Test
+    public void joinOfDifferentHeights() {
+        assertThrows(RuntimeException.class,
+                () -> verify(LD_TRUE, BR_FALSE, 4, LD_CONST, 1, BRANCH, 6, LD_CONST, 2, LD_CONST, 3, POP, RET));
+    }
+
+    @Test
+    public void stackInsideBlock() {
+        DiemInstructionTable table = createTable(unit, LD_TRUE, BR_FALSE, 4, LD_CONST, 1, BRANCH, 5, LD_CONST, 2,
+                LD_TRUE, POP, POP, RET);
+        CodeUnit code = createCode(unit, table);
+        DiemStackVerifier.BlockStacks stacks = DiemStackVerifier.verify(unit, code, table);
+        // the join at 5 is entered with an integer, a boolean is pushed on top of it
+        assertEquals(-1, stacks.getBlockAt(6));
+        assertArrayEquals(new SignatureToken[]{SignatureToken.stUint64, SignatureToken.stBool},
+                DiemStackVerifier.getStackAt(unit, code, table, stacks, 6));
+        assertArrayEquals(new SignatureToken[0], DiemStackVerifier.getStackAt(unit, code, table, stacks, 8));
+    }
+
+    @Test
+    public void unreachableBlock() {
+        DiemInstructionTable table = createTable(unit, RET, LD_CONST, 1, POP, RET);
+        CodeUnit code = createCode(unit, table);
+        DiemStackVerifier.BlockStacks stacks = DiemStackVerifier.verify(unit, code, table);
+        assertTrue(stacks.isReachable(0));
+        assertFalse(stacks.isReachable(1));
+        assertNull(DiemStackVerifier.getStackAt(unit, code, table, stacks, 2));
+    }
+}
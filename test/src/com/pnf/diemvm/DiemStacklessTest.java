@@ -0,0 +1,127 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import static com.pnf.diemvm.Diem.OpcodeDef.ADD;
+import static com.pnf.diemvm.Diem.OpcodeDef.ASSERT;
+import static com.pnf.diemvm.Diem.OpcodeDef.BR_FALSE;
+import static com.pnf.diemvm.Diem.OpcodeDef.BR_TRUE;
+import static com.pnf.diemvm.Diem.OpcodeDef.DIV;
+import static com.pnf.diemvm.Diem.OpcodeDef.LD_CONST;
+import static com.pnf.diemvm.Diem.OpcodeDef.LD_FALSE;
+import static com.pnf.diemvm.Diem.OpcodeDef.LD_TRUE;
+import static com.pnf.diemvm.Diem.OpcodeDef.MOD;
+import static com.pnf.diemvm.Diem.OpcodeDef.MUL;
+import static com.pnf.diemvm.Diem.OpcodeDef.POP;
+import static com.pnf.diemvm.Diem.OpcodeDef.RET;
+import static com.pnf.diemvm.Diem.OpcodeDef.SUB;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.pnf.diemvm.Diem.OpcodeDef;
+
+/**
+ * Constant folding and branch pruning of synthetic routines lowered to register form.
+ */
+public class DiemStacklessTest extends AbstractDiemTest {
+    private static DiemUnit unit;
+
+    @BeforeClass
+    public static void loadUnit() throws Exception {
+        unit = loadModule("libra_coin.bin");
+    }
+
+    private static DiemStackless lower(Object... insns) {
+        DiemInstructionTable table = createTable(unit, insns);
+        CodeUnit code = createCode(unit, table);
+        return DiemStackless.lower(unit, code, table, DiemStackVerifier.verify(unit, code, table));
+    }
+
+    /** lower a binary operation on two constants, whose result is at index 2 */
+    private static DiemStackless lowerOperation(OpcodeDef opcode, long a, long b) {
+        return lower(LD_CONST, a, LD_CONST, b, opcode, POP, RET);
+    }
+
+    @Test
+    public void foldAddition() {
+        DiemStackless r = lowerOperation(ADD, 2, 3);
+        assertTrue(r.isConstant(2));
+        assertEquals(5, r.getConstant(2));
+    }
+
+    @Test
+    public void foldDivision() {
+        DiemStackless r = lowerOperation(DIV, 7, 2);
+        assertTrue(r.isConstant(2));
+        assertEquals(3, r.getConstant(2));
+    }
+
+    @Test
+    public void foldUnsignedOperands() {
+        // 2^64-1 is a u64, not -1
+        DiemStackless r = lowerOperation(DIV, -1L, 2);
+        assertTrue(r.isConstant(2));
+        assertEquals(Long.MAX_VALUE, r.getConstant(2));
+    }
+
+    @Test
+    public void noFoldOfAbortingOperations() {
+        // the operations abort at run time, their results are not constants
+        assertFalse(lowerOperation(ADD, -1L, 1).isConstant(2));
+        assertFalse(lowerOperation(SUB, 1, 2).isConstant(2));
+        assertFalse(lowerOperation(MUL, 1L << 33, 1L << 33).isConstant(2));
+        assertFalse(lowerOperation(DIV, 1, 0).isConstant(2));
+        assertFalse(lowerOperation(MOD, 1, 0).isConstant(2));
+    }
+
+    @Test
+    public void noDeferralOfAborts() {
+        // the addition may abort: it is not evaluated after the assertion
+        DiemStackless r = lower(LD_CONST, -1L, LD_CONST, 1, ADD, LD_FALSE, LD_CONST, 7, ASSERT, POP, RET);
+        assertFalse(r.isFolded(2));
+        // it is folded into its consumer if nothing happens in between
+        r = lower(LD_CONST, -1L, LD_CONST, 1, ADD, POP, RET);
+        assertTrue(r.isFolded(2));
+    }
+
+    @Test
+    public void pruneDeadFallthrough() {
+        DiemStackless r = lower(LD_FALSE, BR_FALSE, 4, LD_CONST, 1, POP, RET);
+        assertTrue(r.isConstant(1));
+        assertEquals(0, r.getConstant(1));
+    }
+
+    @Test
+    public void pruneDeadTarget() {
+        DiemStackless r = lower(LD_TRUE, BR_TRUE, 5, LD_CONST, 1, POP, RET, LD_CONST, 2, POP, RET);
+        assertTrue(r.isConstant(1));
+        assertEquals(1, r.getConstant(1));
+    }
+
+    @Test
+    public void noPruneOfLiveBranches() {
+        // the condition is the result of an aborting division
+        DiemStackless r = lower(LD_CONST, 1, LD_CONST, 0, DIV, BR_FALSE, 6, LD_CONST, 1, POP, RET);
+        assertFalse(r.isConstant(3));
+    }
+}
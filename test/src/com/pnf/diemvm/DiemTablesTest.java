@@ -0,0 +1,60 @@
+/*
+ * JEB Copyright PNF Software, Inc.
+ * 
+ *     https://www.pnfsoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.pnf.diemvm;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * The tables of the test modules, including the decoded instructions of their routines, must match
+ * the NAME.expected files.
+ */
+public class DiemTablesTest extends AbstractDiemTest {
+    static final String[] MODULES = {"1", "check_native_keccak256", "create_account", "libra_account",
+            "libra_coin", "math"};
+
+    @Test
+    public void tablesMatchExpected() throws Exception {
+        for(String name: MODULES) {
+            DiemUnit unit = loadModule(name + ".bin");
+            String expected = readTestFile(name + ".expected");
+            assertEquals(name, expected.strip(), unit.formatTables().strip());
+        }
+    }
+
+    @Test
+    public void instructionTablesCoverBytecode() throws Exception {
+        for(String name: MODULES) {
+            DiemUnit unit = loadModule(name + ".bin");
+            for(FunctionDef f: unit.getInternalFunctions()) {
+                CodeUnit code = f.getCode();
+                DiemInstructionTable table = code.getInstructionTable();
+                assertEquals(name, code.getInsnFileSize(), table.getByteSize());
+                int offset = 0;
+                for(int i = 0; i < table.size(); i++) {
+                    DiemInstruction insn = code.getInstructionAt(offset);
+                    assertEquals(name, table.getOpcode(i), insn.getOpcode());
+                    offset += insn.getSize();
+                }
+                assertEquals(name, table.getByteSize(), offset);
+            }
+        }
+    }
+}